@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding of cache keys and values and of persisted index entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+  private static final String URL = "https://cdn.discordapp.com/attachments/"
+      + "759070000000000000/861220000000000000/screenshot.png";
+  private static final String INDEX_ENTRY = "241000000000000000|861220000000000000|0||1920|1080|"
+      + URL;
+  private final long attachmentId = 861220000000000000L;
+  private final byte[] rarityValue = CacheCodec.encodeRarity(RarityTypes.EPIC);
+
+  @Benchmark
+  public byte[] encodeRarityKey() {
+    return CacheCodec.encodeRarityKey(attachmentId);
+  }
+
+  @Benchmark
+  public byte[] encodeRarity() {
+    return CacheCodec.encodeRarity(RarityTypes.EPIC);
+  }
+
+  @Benchmark
+  public Optional<RarityTypes> decodeRarity() {
+    return CacheCodec.decodeRarity(rarityValue);
+  }
+
+  @Benchmark
+  public OptionalLong parseAttachmentId() {
+    return CacheCodec.parseAttachmentId(URL);
+  }
+
+  @Benchmark
+  public Optional<IndexedMessage> deserializeIndexEntry() {
+    return IndexedMessage.deserialize(1, 2, "861220000000000001", INDEX_ENTRY);
+  }
+}
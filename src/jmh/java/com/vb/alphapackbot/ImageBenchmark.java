@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares full ImageIO decode of a screenshot with sampled decode of the rarity patch,
+ * and measures classification of a downloaded screenshot, i.e. computeRarity without network
+ * and cache.
+ * Screenshots are generated: noisy 1920x1080 images with a rarity coloured area at the anchor,
+ * which compress about as badly as real screenshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+  @Param({"png", "jpg"})
+  public String format;
+  private byte[] image;
+  private int[] patch;
+  private RarityClassifier classifier;
+
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(42);
+    BufferedImage screenshot = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < screenshot.getHeight(); y++) {
+      for (int x = 0; x < screenshot.getWidth(); x++) {
+        screenshot.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    for (int y = 880; y < 920; y++) {
+      for (int x = 920; x < 960; x++) {
+        screenshot.setRGB(x, y, 0x50A5DC);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(screenshot, format, out);
+    image = out.toByteArray();
+    classifier = new RarityClassifier(null, null, null, null, 2, 0.6, false, 480);
+    patch = ImageSampler.samplePatch(new ByteArrayInputStream(image), AnchorProfile::locate, 2);
+  }
+
+  @Benchmark
+  public int fullDecode() throws IOException {
+    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+    return decoded.getRGB(940, 900);
+  }
+
+  @Benchmark
+  public int[] sampledDecode() throws IOException {
+    return ImageSampler.samplePatch(new ByteArrayInputStream(image), AnchorProfile::locate, 2);
+  }
+
+  @Benchmark
+  public Classification computeRarity() throws IOException {
+    return classifier.classify(new ByteArrayInputStream(image));
+  }
+
+  @Benchmark
+  public Classification classifyPatch() {
+    return classifier.classify(patch);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures lookups of random attachments in a filled rarity store, from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MappedRarityStoreBenchmark {
+  private static final long FIRST_ID = 800_000_000_000_000_000L;
+  @Param({"1000000", "10000000"})
+  public int entries;
+  private Path directory;
+  private MappedRarityStore store;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("rarities");
+    store = new MappedRarityStore(directory.resolve("rarities.db"), entries * 2);
+    RarityTypes[] rarities = RarityTypes.values();
+    for (int i = 0; i < entries; i++) {
+      store.put(FIRST_ID + i, rarities[i % rarities.length]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    Files.deleteIfExists(directory.resolve("rarities.db"));
+    Files.deleteIfExists(directory);
+  }
+
+  @Benchmark
+  public Optional<RarityTypes> hit() {
+    return store.get(FIRST_ID + ThreadLocalRandom.current().nextInt(entries));
+  }
+
+  @Benchmark
+  public Optional<RarityTypes> miss() {
+    return store.get(FIRST_ID - 1 - ThreadLocalRandom.current().nextInt(entries));
+  }
+}
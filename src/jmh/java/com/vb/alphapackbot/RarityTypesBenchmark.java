@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares lookup table classification of colours with the former {@link Range} based one.
+ * Run with {@code -prof gc} to see allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RarityTypesBenchmark {
+  private static final int SAMPLES = 1024;
+  private final int[] colors = new int[SAMPLES];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    int[] rarityColors = {0x505050, 0xE1D2B9, 0x50A5DC, 0xA046B4, 0xF09B0F};
+    for (int i = 0; i < SAMPLES; i++) {
+      // mostly valid rarity colours with some noise, like real screenshots
+      colors[i] = random.nextInt(10) == 0
+          ? random.nextInt(0x1000000)
+          : rarityColors[random.nextInt(rarityColors.length)] ^ random.nextInt(0x080808);
+    }
+  }
+
+  @Benchmark
+  public void lookupTable(Blackhole blackhole) {
+    for (int color : colors) {
+      blackhole.consume(RarityTypes.fromRgb(color));
+    }
+  }
+
+  @Benchmark
+  public void ranges(Blackhole blackhole) {
+    for (int color : colors) {
+      blackhole.consume(fromRanges(color));
+    }
+  }
+
+  /**
+   * Former implementation of {@link RarityClassifier#computeRarity(int)}, without logging.
+   */
+  private static RarityTypes fromRanges(int rgb) {
+    Color color = new Color(rgb);
+    int[] channels = {color.getRed(), color.getGreen(), color.getBlue()};
+    for (RarityTypes rarity : RarityTypes.values()) {
+      ImmutableList<Range<Integer>> range = rarity.getRange();
+      int hitCounter = 0;
+      for (int i = 0; i < 3; i++) {
+        if (range.get(i).contains(channels[i])) {
+          hitCounter += 1;
+        }
+      }
+      if (hitCounter == 3) {
+        return rarity;
+      }
+    }
+    return RarityTypes.UNKNOWN;
+  }
+}
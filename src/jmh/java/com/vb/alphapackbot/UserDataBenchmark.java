@@ -0,0 +1,62 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures counting of rarities of a user with a thousand screenshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserDataBenchmark {
+  private static final int SCREENSHOTS = 1000;
+  private final RarityTypes[] rarities = new RarityTypes[SCREENSHOTS];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    RarityTypes[] values = RarityTypes.values();
+    for (int i = 0; i < SCREENSHOTS; i++) {
+      rarities[i] = values[random.nextInt(values.length)];
+    }
+  }
+
+  @Benchmark
+  public UserData increment() {
+    UserData userData = new UserData("1");
+    for (RarityTypes rarity : rarities) {
+      userData.increment(rarity);
+    }
+    return userData;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Local HTTP server standing in for Discord REST API and attachment CDN.
+ * <ul>
+ *   <li>{@code GET /api/channels/{id}/messages?before={id}&limit={n}} returns a page of message
+ *   history, one {@code messageId serializedEntry} line per message, newest first. Every
+ *   {@code rateLimitEvery}-th request of a channel is answered with 429 instead.</li>
+ *   <li>{@code POST /api/channels/{id}/messages} accepts a reply.</li>
+ *   <li>{@code GET /attachments/{channel}/{attachment}/screenshot.png} returns the screenshot,
+ *   supporting single range requests.</li>
+ * </ul>
+ * <p>Every response is delayed by the configured latency with uniform jitter of &plusmn;50 %.</p>
+ */
+public class DiscordStandIn implements AutoCloseable {
+  private static final Splitter pathSplitter = Splitter.on('/').omitEmptyStrings();
+  private static final Splitter.MapSplitter querySplitter =
+      Splitter.on('&').withKeyValueSeparator('=');
+  private final SyntheticGuild guild;
+  private final long apiLatencyMillis;
+  private final long cdnLatencyMillis;
+  private final int rateLimitEvery;
+  private final long retryAfterMillis;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("stand-in-%d").setDaemon(true).build());
+  private final Map<Long, AtomicLong> historyRequests = new ConcurrentHashMap<>();
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder replies = new LongAdder();
+  private final LongAdder attachmentsServed = new LongAdder();
+
+  /**
+   * Creates the stand-in listening on an ephemeral port of loopback interface.
+   *
+   * @param guild guild whose history and attachments are served
+   * @param apiLatencyMillis mean latency of API responses
+   * @param cdnLatencyMillis mean latency of CDN responses
+   * @param rateLimitEvery every n-th history request of a channel is rate limited, 0 never
+   * @param retryAfterMillis time after which rate limited request may be retried
+   * @throws IOException if the server couldn't be bound
+   */
+  public DiscordStandIn(@NotNull SyntheticGuild guild,
+                        long apiLatencyMillis,
+                        long cdnLatencyMillis,
+                        int rateLimitEvery,
+                        long retryAfterMillis) throws IOException {
+    this.guild = guild;
+    this.apiLatencyMillis = apiLatencyMillis;
+    this.cdnLatencyMillis = cdnLatencyMillis;
+    this.rateLimitEvery = rateLimitEvery;
+    this.retryAfterMillis = retryAfterMillis;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/api/channels/", this::handleMessages);
+    server.createContext("/attachments/", this::handleAttachment);
+    server.start();
+  }
+
+  public String getBaseUrl() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  public String getAttachmentUrl(long channelId, long attachmentId) {
+    return getBaseUrl() + "/attachments/" + channelId + "/" + attachmentId + "/screenshot.png";
+  }
+
+  public long getRateLimited() {
+    return rateLimited.sum();
+  }
+
+  public long getReplies() {
+    return replies.sum();
+  }
+
+  public long getAttachmentsServed() {
+    return attachmentsServed.sum();
+  }
+
+  private void handleMessages(HttpExchange exchange) throws IOException {
+    try {
+      delay(apiLatencyMillis);
+      List<String> path = pathSplitter.splitToList(exchange.getRequestURI().getPath());
+      if (path.size() != 4 || !path.get(3).equals("messages")) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      long channelId = Long.parseLong(path.get(2));
+      if (exchange.getRequestMethod().equals("POST")) {
+        exchange.getRequestBody().readAllBytes();
+        replies.increment();
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      long request = historyRequests
+          .computeIfAbsent(channelId, id -> new AtomicLong())
+          .incrementAndGet();
+      if (rateLimitEvery > 0 && request % rateLimitEvery == 0) {
+        rateLimited.increment();
+        exchange.getResponseHeaders().set("X-RateLimit-Reset-After",
+            String.format(Locale.ROOT, "%.3f", retryAfterMillis / 1000.0));
+        exchange.sendResponseHeaders(429, -1);
+        return;
+      }
+      send(exchange, 200, historyPage(channelId, exchange.getRequestURI()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private byte[] historyPage(long channelId, URI uri) {
+    Map<String, String> query = uri.getRawQuery() == null
+        ? Map.of()
+        : querySplitter.split(uri.getRawQuery());
+    long before = Long.parseLong(query.getOrDefault("before", Long.toString(Long.MAX_VALUE)));
+    int limit = Integer.parseInt(query.getOrDefault("limit", "100"));
+    StringBuilder page = new StringBuilder();
+    int count = 0;
+    for (SyntheticGuild.Screenshot screenshot : guild.getScreenshots(channelId)) {
+      if (count == limit) {
+        break;
+      }
+      if (screenshot.messageId >= before) {
+        continue;
+      }
+      IndexedMessage message = new IndexedMessage(guild.getGuildId(), channelId,
+          screenshot.messageId, screenshot.authorId, screenshot.attachmentId,
+          getAttachmentUrl(channelId, screenshot.attachmentId), SyntheticGuild.WIDTH,
+          SyntheticGuild.HEIGHT, false, null);
+      page.append(screenshot.messageId).append(' ').append(message.serialize()).append('\n');
+      count++;
+    }
+    return page.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void handleAttachment(HttpExchange exchange) throws IOException {
+    try {
+      delay(cdnLatencyMillis);
+      List<String> path = pathSplitter.splitToList(exchange.getRequestURI().getPath());
+      byte[][] parts = path.size() == 4 ? guild.getAttachment(Long.parseLong(path.get(2))) : null;
+      if (parts == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      attachmentsServed.increment();
+      long length = 0;
+      for (byte[] part : parts) {
+        length += part.length;
+      }
+      long first = 0;
+      long last = length - 1;
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (range != null && range.startsWith("bytes=")) {
+        int dash = range.indexOf('-');
+        first = Long.parseLong(range.substring("bytes=".length(), dash));
+        if (dash + 1 < range.length()) {
+          last = Math.min(last, Long.parseLong(range.substring(dash + 1)));
+        }
+        if (first >= length) {
+          exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+          exchange.sendResponseHeaders(416, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + first + "-" + last + "/" + length);
+        exchange.sendResponseHeaders(206, last - first + 1);
+      } else {
+        exchange.sendResponseHeaders(200, length);
+      }
+      try (OutputStream out = exchange.getResponseBody()) {
+        long offset = 0;
+        for (byte[] part : parts) {
+          int from = (int) Math.max(0, first - offset);
+          int to = (int) Math.min(part.length, last - offset + 1);
+          if (from < to) {
+            out.write(part, from, to - from);
+          }
+          offset += part.length;
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  private static void delay(long meanMillis) {
+    if (meanMillis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(meanMillis / 2, meanMillis * 3 / 2 + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
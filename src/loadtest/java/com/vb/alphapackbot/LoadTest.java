@@ -0,0 +1,303 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.base.Splitter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Offline load test of the count command.
+ * <p>The bot runs unchanged from {@link MessageHandler} through {@link CommandExecutor},
+ * {@code CountCommand}, {@link MessageIndex} and {@link HistoryFetcher} to image
+ * classification, against {@link DiscordStandIn} serving a {@link SyntheticGuild}.
+ * JDA entities are stood in by {@link StandInEntities}, as a gateway session can't be
+ * emulated. A closed loop keeps {@code concurrency} count commands in flight, each is
+ * received by the handler as a gateway event would be. Counts in replies of the bot are
+ * checked against the seeded rarities.</p>
+ * <p>Options are passed as {@code --name=value}, see {@link #main(String[])} for defaults.
+ * Cache is disabled unless {@code --cache=true}, in which case in-memory backend is used.</p>
+ */
+public class LoadTest {
+  private static final Logger log = Logger.getLogger(LoadTest.class);
+  private static final Splitter sectionSplitter = Splitter.on("\n\n");
+  private static final Splitter lineSplitter = Splitter.on('\n');
+  private final SyntheticGuild guild;
+  private final DiscordStandIn standIn;
+  private final MessageIndex messageIndex;
+  private final TrackingExecutor executor;
+  private final StandInEntities entities;
+  private final MessageHandler handler;
+  private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder checked = new LongAdder();
+  private final LongAdder mismatches = new LongAdder();
+
+  LoadTest(@NotNull SyntheticGuild guild,
+           @NotNull DiscordStandIn standIn,
+           @NotNull Telemetry telemetry,
+           @NotNull Cache cache,
+           @NotNull RarityClassifier classifier,
+           @NotNull ClassificationPipeline pipeline,
+           @NotNull MessageIndex messageIndex,
+           @NotNull TrackingExecutor executor) {
+    this.guild = guild;
+    this.standIn = standIn;
+    this.messageIndex = messageIndex;
+    this.executor = executor;
+    this.entities = new StandInEntities(guild, standIn, this::check);
+    this.handler = new MessageHandler(telemetry, classifier, pipeline, cache, new TypingManager(),
+        messageIndex, executor);
+  }
+
+  /**
+   * Runs the load test and prints the report.
+   * Exits with 1 if any command failed or counted rarities differing from the seeded ones.
+   *
+   * @param args options in format {@code --name=value}
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    final int channels = Integer.parseInt(options.getOrDefault("channels", "2"));
+    final int users = Integer.parseInt(options.getOrDefault("users", "20"));
+    final int screenshots = Integer.parseInt(options.getOrDefault("screenshots", "50"));
+    final int commands = Integer.parseInt(options.getOrDefault("commands", "200"));
+    final int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "10"));
+    final int mentions = Integer.parseInt(options.getOrDefault("mentions", "1"));
+    final long apiLatency = Long.parseLong(options.getOrDefault("api-latency-millis", "50"));
+    final long cdnLatency = Long.parseLong(options.getOrDefault("cdn-latency-millis", "30"));
+    final int rateLimitEvery = Integer.parseInt(options.getOrDefault("rate-limit-every", "5"));
+    final long retryAfter = Long.parseLong(options.getOrDefault("retry-after-millis", "250"));
+    final boolean warmIndex = Boolean.parseBoolean(options.getOrDefault("warm-index", "false"));
+    final boolean cacheEnabled = Boolean.parseBoolean(options.getOrDefault("cache", "false"));
+    final boolean rangeRequests =
+        Boolean.parseBoolean(options.getOrDefault("range-requests", "false"));
+    final long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+    log.infof("Seeding %d channels with %d users x %d screenshots...",
+        channels, users, screenshots);
+    SyntheticGuild guild = SyntheticGuild.seed(seed, channels, users, screenshots);
+    Properties.getInstance().setCacheEnabled(cacheEnabled);
+    int exitCode;
+    try (DiscordStandIn standIn =
+             new DiscordStandIn(guild, apiLatency, cdnLatency, rateLimitEvery, retryAfter)) {
+      Telemetry telemetry = new Telemetry();
+      Cache cache = new Cache(telemetry, 50_000, 0, 10_000, 0, "memory", 1_000_000, "", 0, 0, 0, 0);
+      HistoryFetcher historyFetcher = new HistoryFetcher(telemetry, 4);
+      ImageDownloader downloader =
+          new ImageDownloader(telemetry, 5_000, 30_000, 8, rangeRequests, 65_536);
+      RarityClassifier classifier =
+          new RarityClassifier(cache, null, downloader, telemetry, 2, 0.6, false, 480);
+      ClassificationPipeline pipeline = new ClassificationPipeline(classifier, downloader, 2, 16);
+      MessageIndex messageIndex = new MessageIndex(cache, historyFetcher, 0, 0);
+      TrackingExecutor executor = new TrackingExecutor(telemetry);
+      LoadTest loadTest = new LoadTest(guild, standIn, telemetry, cache, classifier, pipeline,
+          messageIndex, executor);
+      if (warmIndex) {
+        loadTest.warmUp();
+      }
+      long start = System.nanoTime();
+      loadTest.run(commands, concurrency, mentions, new Random(seed));
+      long elapsed = System.nanoTime() - start;
+      loadTest.report(commands, elapsed, telemetry);
+      exitCode = loadTest.failed.sum() > 0 || loadTest.mismatches.sum() > 0 ? 1 : 0;
+    }
+    System.exit(exitCode);
+  }
+
+  /**
+   * Indexes all channels once, commands then only classify.
+   */
+  void warmUp() {
+    long start = System.nanoTime();
+    for (long channelId : guild.getChannelIds()) {
+      messageIndex.getMessages(entities.getChannel(channelId));
+    }
+    log.infof("Indexed %d screenshots in %d ms.", guild.getScreenshotCount(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Sends commands to the handler, keeping at most concurrency of them in flight,
+   * and waits for all of them.
+   */
+  void run(int commands, int concurrency, int mentions, Random random)
+      throws InterruptedException {
+    Semaphore inFlight = new Semaphore(concurrency);
+    CountDownLatch done = new CountDownLatch(commands);
+    for (int i = 0; i < commands; i++) {
+      long channelId = guild.getChannelIds().get(random.nextInt(guild.getChannelIds().size()));
+      Set<Long> userIds = new LinkedHashSet<>();
+      while (userIds.size() < Math.min(mentions, guild.getUserIds().size())) {
+        userIds.add(guild.getUserIds().get(random.nextInt(guild.getUserIds().size())));
+      }
+      GuildMessageReceivedEvent event = entities.countCommand(channelId, new ArrayList<>(userIds));
+      inFlight.acquire();
+      long submitted = System.nanoTime();
+      handler.onGuildMessageReceived(event);
+      executor.takeSubmitted().whenComplete((result, e) -> {
+        if (e == null) {
+          latencies.add(System.nanoTime() - submitted);
+        } else if (e instanceof RejectedExecutionException) {
+          rejected.increment();
+        } else {
+          log.error("Command failed!", e);
+          failed.increment();
+        }
+        inFlight.release();
+        done.countDown();
+      });
+    }
+    done.await();
+  }
+
+  /**
+   * Checks counts of every user in a reply of the count command against the seeded rarities.
+   * Other replies are ignored.
+   */
+  private void check(long channelId, String reply) {
+    for (String section : sectionSplitter.split(reply)) {
+      List<String> lines = lineSplitter.splitToList(section);
+      if (!lines.get(0).startsWith("<@") || !lines.get(0).endsWith(">")) {
+        continue;
+      }
+      long userId = Long.parseLong(lines.get(0).substring(2, lines.get(0).length() - 1));
+      EnumMap<RarityTypes, Integer> counted = new EnumMap<>(RarityTypes.class);
+      for (String line : lines.subList(1, lines.size())) {
+        int colon = line.indexOf(':');
+        Optional<RarityTypes> rarity = colon < 0
+            ? Optional.empty()
+            : RarityTypes.parse(line.substring(0, colon));
+        rarity.ifPresent(value ->
+            counted.put(value, Integer.parseInt(line.substring(colon + 1).trim())));
+      }
+      EnumMap<RarityTypes, Integer> expected = guild.getExpectedRarities(channelId, userId);
+      checked.increment();
+      for (RarityTypes rarity : RarityTypes.values()) {
+        if (counted.getOrDefault(rarity, 0).intValue()
+            != expected.getOrDefault(rarity, 0).intValue()) {
+          log.errorf("User %d in channel %d counted %s, expected %s.",
+              userId, channelId, counted, expected);
+          mismatches.increment();
+          break;
+        }
+      }
+    }
+  }
+
+  private void report(int commands, long elapsedNanos, Telemetry telemetry) {
+    long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf("Commands: %d submitted, %d completed, %d failed, %d rejected%n",
+        commands, sorted.length, failed.sum(), rejected.sum());
+    System.out.printf("Throughput: %.2f commands/s over %.2f s%n", sorted.length / seconds,
+        seconds);
+    System.out.printf("Latency: p50 %d ms, p95 %d ms, p99 %d ms, max %d ms%n",
+        percentileMillis(sorted, 50), percentileMillis(sorted, 95),
+        percentileMillis(sorted, 99), percentileMillis(sorted, 100));
+    System.out.printf("History: %d pages fetched, %d rate limited, %d ms waited%n",
+        telemetry.getHistoryPagesFetched().sum(), standIn.getRateLimited(),
+        telemetry.getHistoryWaitMillis().sum());
+    System.out.printf("Downloads: %d attachments served, %d MiB, %s%n",
+        standIn.getAttachmentsServed(), telemetry.getDownloadedBytes().sum() >> 20,
+        telemetry.getDownloadLatency());
+    System.out.printf("Replies: %d posted, %d counts checked, %d count mismatches%n",
+        standIn.getReplies(), checked.sum(), mismatches.sum());
+  }
+
+  private static long percentileMillis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(sorted.length * percentile / 100);
+    return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, rank - 1)]);
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+        throw new IllegalArgumentException("Option " + arg + " is not in format --name=value!");
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    return options;
+  }
+
+  /**
+   * Executor completing a future once the command submitted by the handler finishes,
+   * so the load test knows when the reply was sent.
+   */
+  static class TrackingExecutor extends CommandExecutor {
+    private final ThreadLocal<CompletableFuture<Void>> submitted = new ThreadLocal<>();
+
+    TrackingExecutor(Telemetry telemetry) {
+      super(telemetry, "auto", 5, 64, 100);
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+      CompletableFuture<Void> completion = new CompletableFuture<>();
+      submitted.set(completion);
+      try {
+        super.execute(() -> {
+          try {
+            command.run();
+            completion.complete(null);
+          } catch (RuntimeException | Error e) {
+            completion.completeExceptionally(e);
+            throw e;
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        completion.completeExceptionally(e);
+        throw e;
+      }
+    }
+
+    /**
+     * Returns completion of the command the handler submitted on this thread.
+     *
+     * @return {@link CompletableFuture} of the command, failed if the handler submitted none.
+     */
+    CompletableFuture<Void> takeSubmitted() {
+      CompletableFuture<Void> completion = submitted.get();
+      submitted.remove();
+      return completion == null
+          ? CompletableFuture.failedFuture(new IllegalStateException("No command submitted!"))
+          : completion;
+    }
+  }
+}
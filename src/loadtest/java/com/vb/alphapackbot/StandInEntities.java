@@ -0,0 +1,328 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.exceptions.RateLimitedException;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.dv8tion.jda.api.requests.restaction.MessageAction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * JDA entities of a {@link SyntheticGuild} backed by {@link DiscordStandIn}, so the bot runs
+ * unchanged without a gateway connection.
+ * <p>Entities are dynamic proxies implementing only the methods the bot calls, other methods
+ * throw {@link UnsupportedOperationException}, so a new call is noticed instead of silently
+ * answered. History of channels is paged from the stand-in, rate limited pages fail
+ * with {@link RateLimitedException} as {@code complete(false)} does. Replies are posted
+ * to the stand-in and passed to the reply listener.</p>
+ */
+public class StandInEntities {
+  private final SyntheticGuild syntheticGuild;
+  private final DiscordStandIn standIn;
+  private final BiConsumer<Long, String> replyListener;
+  private final HttpClient api = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(5))
+      .build();
+  private final AtomicLong nextCommandId = new AtomicLong(900_000_000_000_000_000L);
+  private final JDA jda;
+  private final Guild guild;
+  private final Map<Long, User> users = new HashMap<>();
+  private final Map<Long, TextChannel> channels = new HashMap<>();
+
+  /**
+   * Creates entities of all users and channels of the guild.
+   *
+   * @param syntheticGuild guild whose entities are created
+   * @param standIn stand-in serving history of the guild
+   * @param replyListener receives ID of the channel and content of every reply
+   */
+  public StandInEntities(@NotNull SyntheticGuild syntheticGuild,
+                         @NotNull DiscordStandIn standIn,
+                         @NotNull BiConsumer<Long, String> replyListener) {
+    this.syntheticGuild = syntheticGuild;
+    this.standIn = standIn;
+    this.replyListener = replyListener;
+    this.jda = proxy(JDA.class, "JDA", Map.of());
+    Member selfMember = proxy(Member.class, "self", Map.of(
+        "hasPermission", args -> true,
+        "hasAccess", args -> true));
+    this.guild = proxy(Guild.class, "guild", Map.of(
+        "getIdLong", args -> syntheticGuild.getGuildId(),
+        "getId", args -> Long.toString(syntheticGuild.getGuildId()),
+        "getSelfMember", args -> selfMember));
+    for (long userId : syntheticGuild.getUserIds()) {
+      users.put(userId, proxy(User.class, "user " + userId, Map.of(
+          "getIdLong", args -> userId,
+          "getId", args -> Long.toString(userId),
+          "getAsMention", args -> "<@" + userId + ">",
+          "isBot", args -> false)));
+    }
+    for (long channelId : syntheticGuild.getChannelIds()) {
+      channels.put(channelId, createChannel(channelId));
+    }
+  }
+
+  public TextChannel getChannel(long channelId) {
+    return channels.get(channelId);
+  }
+
+  /**
+   * Creates event of a count command sent by the first mentioned user.
+   *
+   * @param channelId ID of the channel the command is sent to
+   * @param userIds IDs of the mentioned users
+   * @return event as received from the gateway
+   */
+  public GuildMessageReceivedEvent countCommand(long channelId, @NotNull List<Long> userIds) {
+    TextChannel channel = channels.get(channelId);
+    List<User> mentioned = userIds.stream().map(users::get).collect(Collectors.toList());
+    String content = "*pack count " + userIds.stream()
+        .map(userId -> "<@" + userId + ">")
+        .collect(Collectors.joining(" "));
+    String stripped = "*pack count " + userIds.stream()
+        .map(userId -> "@" + userId)
+        .collect(Collectors.joining(" "));
+    long messageId = nextCommandId.incrementAndGet();
+    Map<String, Implementation> methods = new HashMap<>();
+    methods.put("getIdLong", args -> messageId);
+    methods.put("getId", args -> Long.toString(messageId));
+    methods.put("getAuthor", args -> mentioned.get(0));
+    methods.put("getContentRaw", args -> content);
+    methods.put("getContentStripped", args -> stripped);
+    methods.put("getMentionedUsers", args -> mentioned);
+    methods.put("getMentionedRoles", args -> List.of());
+    methods.put("getAttachments", args -> List.of());
+    methods.put("getTextChannel", args -> channel);
+    methods.put("getGuild", args -> guild);
+    methods.put("addReaction", args -> action(RestAction.class, () -> null));
+    methods.put("reply", args -> action(MessageAction.class, () -> {
+      reply(channelId, args[0].toString());
+      return null;
+    }));
+    Message message = proxy(Message.class, "command " + messageId, methods);
+    return new GuildMessageReceivedEvent(jda, 0, message);
+  }
+
+  private TextChannel createChannel(long channelId) {
+    TextChannel[] channel = new TextChannel[1];
+    channel[0] = proxy(TextChannel.class, "channel " + channelId, Map.of(
+        "getIdLong", args -> channelId,
+        "getId", args -> Long.toString(channelId),
+        "getGuild", args -> guild,
+        "getJDA", args -> jda,
+        "getHistory", args -> new StandInHistory(channel[0]),
+        "sendTyping", args -> action(RestAction.class, () -> null),
+        "sendMessage", args -> action(MessageAction.class, () -> {
+          reply(channelId, args[0].toString());
+          return null;
+        })));
+    return channel[0];
+  }
+
+  private void reply(long channelId, String content) {
+    HttpRequest request = HttpRequest.newBuilder()
+        .uri(URI.create(standIn.getBaseUrl() + "/api/channels/" + channelId + "/messages"))
+        .POST(HttpRequest.BodyPublishers.ofString(content))
+        .build();
+    try {
+      api.send(request, HttpResponse.BodyHandlers.discarding());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    replyListener.accept(channelId, content);
+  }
+
+  /**
+   * Fetches a page of history older than the given message from the stand-in.
+   */
+  private List<Message> fetchPage(TextChannel channel, long before, int amount)
+      throws IOException, InterruptedException, RateLimitedException {
+    String route = "/api/channels/" + channel.getIdLong() + "/messages";
+    HttpRequest request = HttpRequest.newBuilder()
+        .uri(URI.create(standIn.getBaseUrl() + route + "?limit=" + amount
+            + (before == Long.MAX_VALUE ? "" : "&before=" + before)))
+        .GET()
+        .build();
+    HttpResponse<String> response = api.send(request, HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() == 429) {
+      double resetAfter = Double.parseDouble(
+          response.headers().firstValue("X-RateLimit-Reset-After").orElse("1"));
+      throw new RateLimitedException(route, (long) (resetAfter * 1000));
+    }
+    if (response.statusCode() != 200) {
+      throw new IOException("History request failed with status " + response.statusCode());
+    }
+    List<Message> page = new ArrayList<>(amount);
+    for (String line : response.body().split("\n")) {
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        continue;
+      }
+      Optional<IndexedMessage> entry = IndexedMessage.deserialize(syntheticGuild.getGuildId(),
+          channel.getIdLong(), line.substring(0, space), line.substring(space + 1));
+      entry.ifPresent(value -> page.add(historyMessage(channel, value)));
+    }
+    return page;
+  }
+
+  private Message historyMessage(TextChannel channel, IndexedMessage entry) {
+    List<Message.Attachment> attachments = List.of(attachment(entry));
+    User author = users.get(entry.getAuthorId());
+    return proxy(Message.class, "message " + entry.getMessageId(), Map.of(
+        "getIdLong", args -> entry.getMessageId(),
+        "getId", args -> Long.toString(entry.getMessageId()),
+        "getAuthor", args -> author,
+        "getContentRaw", args -> "",
+        "getAttachments", args -> attachments,
+        "getTextChannel", args -> channel,
+        "getGuild", args -> guild));
+  }
+
+  /**
+   * Creates attachment of the entry. Parameters of the constructor differ between JDA versions,
+   * so arguments are matched by type in order of declaration: snowflake, URL, proxy URL,
+   * file name, content type, then size, height and width.
+   */
+  private static Message.Attachment attachment(IndexedMessage entry) {
+    Constructor<?> constructor = Message.Attachment.class.getConstructors()[0];
+    Class<?>[] types = constructor.getParameterTypes();
+    Deque<String> strings = new ArrayDeque<>(List.of(entry.getAttachmentUrl(),
+        entry.getAttachmentUrl(), "screenshot.png", "image/png"));
+    Deque<Integer> ints = new ArrayDeque<>(List.of(0, entry.getHeight(), entry.getWidth()));
+    Object[] args = new Object[types.length];
+    for (int i = 0; i < types.length; i++) {
+      if (types[i] == long.class) {
+        args[i] = entry.getAttachmentId();
+      } else if (types[i] == String.class) {
+        args[i] = strings.poll();
+      } else if (types[i] == int.class) {
+        args[i] = ints.poll();
+      } else if (types[i] == boolean.class) {
+        args[i] = false;
+      }
+    }
+    try {
+      return (Message.Attachment) constructor.newInstance(args);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to create attachment!", e);
+    }
+  }
+
+  /**
+   * Creates rest action running the call when completed, queued or submitted.
+   */
+  private static <T, A extends RestAction<?>> A action(Class<A> type, Callable<T> call) {
+    return proxy(type, type.getSimpleName(), Map.of(
+        "complete", args -> call.call(),
+        "queue", args -> {
+          call.call();
+          return null;
+        },
+        "submit", args -> CompletableFuture.completedFuture(call.call())));
+  }
+
+  /**
+   * Creates proxy implementing methods by name, equal only to itself.
+   */
+  private static <T> T proxy(Class<T> type, String name,
+                             Map<String, Implementation> methods) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return name;
+            default:
+              Implementation implementation = methods.get(method.getName());
+              if (implementation == null) {
+                throw new UnsupportedOperationException(
+                    type.getSimpleName() + "." + method.getName() + " isn't stood in for!");
+              }
+              return implementation.invoke(args == null ? new Object[0] : args);
+          }
+        }));
+  }
+
+  /**
+   * Method of a proxy, may throw exceptions declared by the method.
+   */
+  private interface Implementation {
+    Object invoke(Object[] args) throws Exception;
+  }
+
+  /**
+   * History of a channel paged from the stand-in, newest first.
+   */
+  private class StandInHistory extends MessageHistory {
+    private final TextChannel channel;
+    private volatile long before = Long.MAX_VALUE;
+
+    StandInHistory(TextChannel channel) {
+      super(channel);
+      this.channel = channel;
+    }
+
+    @NotNull
+    @Override
+    @SuppressWarnings("unchecked")
+    public RestAction<List<Message>> retrievePast(int amount) {
+      return proxy(RestAction.class, "retrievePast", Map.of(
+          "complete", args -> {
+            List<Message> page = fetchPage(channel, before, amount);
+            if (!page.isEmpty()) {
+              before = page.get(page.size() - 1).getIdLong();
+            }
+            return page;
+          }));
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Guild seeded with users posting screenshots of known rarities into its channels.
+ * <p>Only one screenshot per rarity is encoded. Each attachment is served as that screenshot
+ * with a unique text chunk inserted before its end, so all attachments have distinct content
+ * (and aren't deduplicated by content hash) without encoding every one of them.</p>
+ */
+public class SyntheticGuild {
+  static final int WIDTH = 1920;
+  static final int HEIGHT = 1080;
+  private static final long FIRST_ID = 800_000_000_000_000_000L;
+  private static final int IEND_LENGTH = 12;
+  private final long guildId;
+  private final List<Long> channelIds = new ArrayList<>();
+  private final List<Long> userIds = new ArrayList<>();
+  private final Map<Long, List<Screenshot>> screenshots = new HashMap<>();
+  private final Map<Long, Screenshot> attachments = new HashMap<>();
+  private final EnumMap<RarityTypes, byte[]> images = new EnumMap<>(RarityTypes.class);
+
+  private SyntheticGuild(long guildId) {
+    this.guildId = guildId;
+  }
+
+  /**
+   * Seeds the guild. Screenshots of every user are spread over all channels.
+   *
+   * @param seed seed of the random rarities and image noise
+   * @param channels number of channels
+   * @param users number of users
+   * @param screenshotsPerUser number of screenshots posted by every user
+   * @return the seeded guild
+   */
+  public static SyntheticGuild seed(long seed, int channels, int users, int screenshotsPerUser) {
+    Random random = new Random(seed);
+    long nextId = FIRST_ID;
+    SyntheticGuild guild = new SyntheticGuild(nextId++);
+    for (int i = 0; i < channels; i++) {
+      long channelId = nextId++;
+      guild.channelIds.add(channelId);
+      guild.screenshots.put(channelId, new ArrayList<>());
+    }
+    for (int i = 0; i < users; i++) {
+      long userId = nextId++;
+      guild.userIds.add(userId);
+    }
+    List<RarityTypes> rarities = new ArrayList<>(List.of(RarityTypes.values()));
+    rarities.remove(RarityTypes.UNKNOWN);
+    // messages are posted in random order of users, IDs grow with time as snowflakes do
+    List<Long> posts = new ArrayList<>();
+    for (long userId : guild.userIds) {
+      for (int i = 0; i < screenshotsPerUser; i++) {
+        posts.add(userId);
+      }
+    }
+    Collections.shuffle(posts, random);
+    for (long userId : posts) {
+      long channelId = guild.channelIds.get(random.nextInt(channels));
+      RarityTypes rarity = rarities.get(random.nextInt(rarities.size()));
+      Screenshot screenshot = new Screenshot(channelId, nextId++, userId, nextId++, rarity);
+      guild.screenshots.get(channelId).add(screenshot);
+      guild.attachments.put(screenshot.attachmentId, screenshot);
+    }
+    for (List<Screenshot> channelScreenshots : guild.screenshots.values()) {
+      Collections.reverse(channelScreenshots);
+    }
+    for (RarityTypes rarity : rarities) {
+      guild.images.put(rarity, encode(rarity, random));
+    }
+    return guild;
+  }
+
+  public long getGuildId() {
+    return guildId;
+  }
+
+  public List<Long> getChannelIds() {
+    return channelIds;
+  }
+
+  public List<Long> getUserIds() {
+    return userIds;
+  }
+
+  /**
+   * Returns screenshots posted to the channel.
+   *
+   * @param channelId ID of the channel
+   * @return screenshots, newest first
+   */
+  public List<Screenshot> getScreenshots(long channelId) {
+    return screenshots.getOrDefault(channelId, List.of());
+  }
+
+  public int getScreenshotCount() {
+    return attachments.size();
+  }
+
+  /**
+   * Returns counts of rarities the user posted into the channel.
+   *
+   * @param channelId ID of the channel
+   * @param userId ID of the user
+   * @return seeded counts of rarities
+   */
+  public EnumMap<RarityTypes, Integer> getExpectedRarities(long channelId, long userId) {
+    EnumMap<RarityTypes, Integer> counts = new EnumMap<>(RarityTypes.class);
+    for (Screenshot screenshot : getScreenshots(channelId)) {
+      if (screenshot.authorId == userId) {
+        counts.merge(screenshot.rarity, 1, Integer::sum);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Returns encoded attachment.
+   *
+   * @param attachmentId ID of the attachment
+   * @return PNG parts which have to be sent in order, or null if there is no such attachment.
+   */
+  public byte[][] getAttachment(long attachmentId) {
+    Screenshot screenshot = attachments.get(attachmentId);
+    if (screenshot == null) {
+      return null;
+    }
+    byte[] image = images.get(screenshot.rarity);
+    byte[] text = ("attachment\0" + attachmentId).getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer chunk = ByteBuffer.allocate(12 + text.length);
+    chunk.putInt(text.length).put("tEXt".getBytes(StandardCharsets.ISO_8859_1)).put(text);
+    CRC32 crc = new CRC32();
+    crc.update(chunk.array(), 4, 4 + text.length);
+    chunk.putInt((int) crc.getValue());
+    byte[] head = new byte[image.length - IEND_LENGTH];
+    System.arraycopy(image, 0, head, 0, head.length);
+    byte[] tail = new byte[IEND_LENGTH];
+    System.arraycopy(image, head.length, tail, 0, IEND_LENGTH);
+    return new byte[][] {head, chunk.array(), tail};
+  }
+
+  /**
+   * Encodes screenshot with noisy background and the rarity colour around the anchor.
+   */
+  private static byte[] encode(RarityTypes rarity, Random random) {
+    int colour = findColour(rarity);
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int shade = (x + y) * 96 / (WIDTH + HEIGHT) + random.nextInt(32);
+        image.setRGB(x, y, shade << 16 | shade << 8 | shade);
+      }
+    }
+    Point anchor = AnchorProfile.locate(WIDTH, HEIGHT);
+    for (int y = anchor.y - 16; y <= anchor.y + 16; y++) {
+      for (int x = anchor.x - 16; x <= anchor.x + 16; x++) {
+        image.setRGB(x, y, colour);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ImageIO.write(image, "png", out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static int findColour(RarityTypes rarity) {
+    for (int rgb = 0; rgb < 0x1000000; rgb++) {
+      if (RarityTypes.fromRgb(rgb) == rarity) {
+        return rgb;
+      }
+    }
+    throw new IllegalStateException("No colour is classified as " + rarity);
+  }
+
+  /**
+   * Message with a screenshot.
+   */
+  public static class Screenshot {
+    final long channelId;
+    final long messageId;
+    final long authorId;
+    final long attachmentId;
+    final RarityTypes rarity;
+
+    Screenshot(long channelId, long messageId, long authorId, long attachmentId,
+               @NotNull RarityTypes rarity) {
+      this.channelId = channelId;
+      this.messageId = messageId;
+      this.authorId = authorId;
+      this.attachmentId = attachmentId;
+      this.rarity = rarity;
+    }
+  }
+}
@@ -22,8 +22,10 @@ import io.grpc.stub.StreamObserver;
 import io.quarkus.grpc.GrpcService;
 import io.quarkus.runtime.Quarkus;
 import io.quarkus.runtime.ShutdownEvent;
+import io.smallrye.common.annotation.Blocking;
 import io.vertx.mutiny.core.eventbus.EventBus;
 import io.vertx.mutiny.core.eventbus.Message;
+import java.io.IOException;
 import javax.enterprise.event.Event;
 import javax.inject.Inject;
 
@@ -33,16 +35,19 @@ public class AdminService extends AdminGrpc.AdminImplBase {
   final Telemetry telemetry;
   final Event<ShutdownEvent> event;
   final Cache cache;
+  final RarityClassifier classifier;
   final EventBus bus;
 
   @Inject
   AdminService(final Telemetry telemetry,
                final Event<ShutdownEvent> event,
                final Cache cache,
+               final RarityClassifier classifier,
                final EventBus bus) {
     this.telemetry = telemetry;
     this.event = event;
     this.cache = cache;
+    this.classifier = classifier;
     this.bus = bus;
   }
 
@@ -57,7 +62,34 @@ public class AdminService extends AdminGrpc.AdminImplBase {
         .setProcessingCounter(properties.getProcessingCounter().intValue())
         .setIsCacheAvailable(cache.isAvailable())
         .setIsCacheEnabled(properties.isCacheEnabled())
-        .setIsPrintingEnabled(properties.isPrintingEnabled()).build());
+        .setIsPrintingEnabled(properties.isPrintingEnabled())
+        .setNearCacheHits(telemetry.getNearCacheHits().longValue())
+        .setNearCacheMisses(telemetry.getNearCacheMisses().longValue())
+        .setNearCacheEvictions(telemetry.getNearCacheEvictions().longValue())
+        .setContentNearCacheEvictions(telemetry.getContentNearCacheEvictions().longValue())
+        .setCommandsQueued(telemetry.getCommandsQueued().get())
+        .setCommandsActive(telemetry.getCommandsActive().get())
+        .setCommandsRejected(telemetry.getCommandsRejected().longValue())
+        .setHistoryPagesQueued(telemetry.getHistoryPagesQueued().get())
+        .setHistoryPagesFetched(telemetry.getHistoryPagesFetched().longValue())
+        .setHistoryRateLimits(telemetry.getHistoryRateLimits().longValue())
+        .setHistoryWaitMillis(telemetry.getHistoryWaitMillis().longValue())
+        .setHistoryConcurrency(telemetry.getHistoryConcurrency().get())
+        .setDownloadsCompleted(telemetry.getDownloadLatency().getCount())
+        .setDownloadsFailed(telemetry.getDownloadsFailed().longValue())
+        .setDownloadLatencyP50Millis(telemetry.getDownloadLatency().getPercentileMillis(50))
+        .setDownloadLatencyP95Millis(telemetry.getDownloadLatency().getPercentileMillis(95))
+        .setDownloadLatencyP99Millis(telemetry.getDownloadLatency().getPercentileMillis(99))
+        .setDownloadedBytes(telemetry.getDownloadedBytes().longValue())
+        .setContentHashHits(telemetry.getContentHashHits().longValue())
+        .setCacheBackend(cache.getBackend().getName())
+        .setCacheBreakerState(cache.getBackend().getCircuitBreaker()
+            .map(breaker -> breaker.getState().name())
+            .orElse("NONE"))
+        .setCacheBreakerOpenings(cache.getBackend().getCircuitBreaker()
+            .map(CircuitBreaker::getOpenings)
+            .orElse(0L))
+        .build());
     responseObserver.onCompleted();
   }
 
@@ -98,6 +130,52 @@ public class AdminService extends AdminGrpc.AdminImplBase {
         });
   }
 
+  @Override
+  @Blocking
+  public void migrateCache(final MigrateCacheRequest request,
+                           final StreamObserver<MigrateCacheReply> responseObserver) {
+    long migrated;
+    try {
+      migrated = cache.migrateLegacyRarities();
+    } catch (IOException e) {
+      responseObserver.onError(Status.UNAVAILABLE
+          .withDescription(e.getMessage())
+          .withCause(e)
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(MigrateCacheReply
+        .newBuilder()
+        .setMigrated(migrated)
+        .build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  @Blocking
+  public void reprocessLowConfidence(final ReprocessRequest request,
+                                     final StreamObserver<ReprocessReply> responseObserver) {
+    responseObserver.onNext(ReprocessReply
+        .newBuilder()
+        .setResolved(classifier.reprocessLowConfidence())
+        .build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  @Blocking
+  public void validateThumbnails(final ValidateThumbnailsRequest request,
+                                 final StreamObserver<ValidateThumbnailsReply> responseObserver) {
+    ThumbnailValidation validation = classifier.validateThumbnails(request.getSampleSize());
+    responseObserver.onNext(ValidateThumbnailsReply
+        .newBuilder()
+        .setCompared(validation.getCompared())
+        .setMatched(validation.getMatched())
+        .setFailed(validation.getFailed())
+        .build());
+    responseObserver.onCompleted();
+  }
+
   @Override
   public void exit(final ExitRequest request,
                    final StreamObserver<ExitResponse> responseObserver) {
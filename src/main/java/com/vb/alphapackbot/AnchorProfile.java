@@ -0,0 +1,85 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.awt.Point;
+import java.util.Optional;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Positions of the rarity pixel for screenshot aspect ratios.
+ * <p>Only aspect ratios whose position was measured on real screenshots are listed, screenshots
+ * of other aspect ratios are sampled at the default position, measured on 16:9 screenshots.
+ * A profile should be added only together with a reference screenshot checking it.</p>
+ */
+public enum AnchorProfile {
+  STANDARD_16_9(16, 9, 0.489583, 0.83333);
+
+  private static final double DEFAULT_X = 0.489583; //~940 @ FHD
+  private static final double DEFAULT_Y = 0.83333; //~900 @ FHD
+  /**
+   * Largest relative difference of aspect ratios still matched to a profile.
+   */
+  private static final double TOLERANCE = 0.02;
+  private static final AnchorProfile[] profiles = values();
+  private final double aspectRatio;
+  private final double relativeX;
+  private final double relativeY;
+
+  AnchorProfile(int width, int height, double relativeX, double relativeY) {
+    this.aspectRatio = (double) width / height;
+    this.relativeX = relativeX;
+    this.relativeY = relativeY;
+  }
+
+  /**
+   * Selects profile with aspect ratio closest to the dimensions.
+   *
+   * @param width width of the image
+   * @param height height of the image
+   * @return {@link Optional} of the profile of the closest aspect ratio, empty if no profile
+   *     is within tolerance.
+   */
+  public static Optional<AnchorProfile> forDimensions(int width, int height) {
+    double aspectRatio = (double) width / height;
+    AnchorProfile closest = null;
+    double closestDistance = Math.log1p(TOLERANCE);
+    for (AnchorProfile profile : profiles) {
+      double distance = Math.abs(Math.log(profile.aspectRatio / aspectRatio));
+      if (distance <= closestDistance) {
+        closest = profile;
+        closestDistance = distance;
+      }
+    }
+    return Optional.ofNullable(closest);
+  }
+
+  /**
+   * Locates the rarity pixel in an image, using profile selected by its dimensions
+   * or the default position.
+   *
+   * @param width width of the image
+   * @param height height of the image
+   * @return position of the rarity pixel
+   */
+  public static @NotNull Point locate(int width, int height) {
+    Optional<AnchorProfile> profile = forDimensions(width, height);
+    double relativeX = profile.map(value -> value.relativeX).orElse(DEFAULT_X);
+    double relativeY = profile.map(value -> value.relativeY).orElse(DEFAULT_Y);
+    return new Point((int) (width * relativeX), (int) (height * relativeY));
+  }
+}
@@ -16,75 +16,455 @@
 
 package com.vb.alphapackbot;
 
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import io.quarkus.runtime.ShutdownEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import lombok.Getter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.exceptions.JedisConnectionException;
 
+/**
+ * Two-level cache: bounded near cache in process in front of a {@link CacheBackend}
+ * selected by {@code alphapackbot.cache.backend}: {@code redis}, {@code memory} or {@code file}.
+ */
 @Singleton
 public class Cache {
   private static final Logger log = Logger.getLogger(Cache.class);
   private static final Properties properties = Properties.getInstance();
-  private final JedisPool jedisPool;
+  private static final Splitter locationSplitter = Splitter.on('|').limit(4);
+  private final com.google.common.cache.Cache<Long, RarityTypes> nearCache;
+  private final com.google.common.cache.Cache<HashCode, Classification> contentNearCache;
   @Getter
-  private boolean available;
-
-  /**
-   * Attempts to create a Redis cache connection. Sets corresponding flags according to result.
-   */
-  public Cache() {
-    JedisPoolConfig config = new JedisPoolConfig();
-    config.setBlockWhenExhausted(true);
-    config.setMinIdle(1);
-    config.setMaxIdle(5);
-    config.setMaxTotal(5);
-    JedisPool jedisPool = null;
-    Jedis jedis = null;
-    try {
-      jedisPool = new JedisPool(config);
-      jedis = jedisPool.getResource();
-      log.info("Redis connection established.");
-      this.available = true;
-    } catch (JedisConnectionException jce) {
-      log.warn("Unable to connect to redis, disabling cache!");
-      properties.setCacheEnabled(false);
-      this.available = false;
-    } finally {
-      if (jedis != null) {
-        jedis.close();
-      }
-      this.jedisPool = jedisPool;
+  private final CacheBackend backend;
+  final Telemetry telemetry;
+
+  /**
+   * Creates the in-process near cache and the backend.
+   * If the file backend can't be opened, in-memory backend is used instead.
+   *
+   * @param nearCacheMaxSize maximum number of rarities held in process
+   * @param nearCacheExpireAfterMinutes minutes after which rarities expire from process, 0 never
+   * @param contentNearCacheMaxSize maximum number of classifications by content hash held
+   *     in process
+   * @param contentNearCacheExpireAfterMinutes minutes after which classifications expire
+   *     from process, 0 never
+   * @param backendType type of the backend, redis, memory or file
+   * @param memoryMaxSize maximum number of rarities and classifications held by memory backend
+   * @param filePath path of the journal of file backend
+   * @param rarityInitialCapacity initial capacity of rarity store of file backend
+   * @param redisFailureThreshold consecutive Redis failures which open its circuit breaker
+   * @param redisRetryIntervalMillis interval of reconnect attempts while Redis is unreachable
+   * @param redisTimeoutMillis timeout of Redis connections and commands
+   */
+  @Inject
+  public Cache(final Telemetry telemetry,
+               @ConfigProperty(name = "alphapackbot.cache.near.max-size", defaultValue = "50000")
+               final long nearCacheMaxSize,
+               @ConfigProperty(name = "alphapackbot.cache.near.expire-after-minutes",
+                   defaultValue = "0")
+               final long nearCacheExpireAfterMinutes,
+               @ConfigProperty(name = "alphapackbot.cache.near.content.max-size",
+                   defaultValue = "10000")
+               final long contentNearCacheMaxSize,
+               @ConfigProperty(name = "alphapackbot.cache.near.content.expire-after-minutes",
+                   defaultValue = "0")
+               final long contentNearCacheExpireAfterMinutes,
+               @ConfigProperty(name = "alphapackbot.cache.backend", defaultValue = "redis")
+               final String backendType,
+               @ConfigProperty(name = "alphapackbot.cache.memory.max-size",
+                   defaultValue = "1000000")
+               final long memoryMaxSize,
+               @ConfigProperty(name = "alphapackbot.cache.file.path", defaultValue = "cache.db")
+               final String filePath,
+               @ConfigProperty(name = "alphapackbot.cache.file.rarities.initial-capacity",
+                   defaultValue = "1048576")
+               final int rarityInitialCapacity,
+               @ConfigProperty(name = "alphapackbot.cache.redis.failure-threshold",
+                   defaultValue = "3")
+               final int redisFailureThreshold,
+               @ConfigProperty(name = "alphapackbot.cache.redis.retry-interval-millis",
+                   defaultValue = "5000")
+               final long redisRetryIntervalMillis,
+               @ConfigProperty(name = "alphapackbot.cache.redis.timeout-millis",
+                   defaultValue = "2000")
+               final int redisTimeoutMillis) {
+    this.telemetry = telemetry;
+    this.nearCache = buildNearCache(nearCacheMaxSize, nearCacheExpireAfterMinutes,
+        telemetry.getNearCacheEvictions());
+    this.contentNearCache = buildNearCache(contentNearCacheMaxSize,
+        contentNearCacheExpireAfterMinutes, telemetry.getContentNearCacheEvictions());
+    this.backend = createBackend(backendType, memoryMaxSize, filePath, rarityInitialCapacity,
+        redisFailureThreshold, redisRetryIntervalMillis, redisTimeoutMillis);
+    log.infof("Using %s cache backend.", backend.getName());
+  }
+
+  private static <K, V> com.google.common.cache.Cache<K, V> buildNearCache(
+      long maxSize, long expireAfterMinutes, LongAdder evictions) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .removalListener(notification -> {
+          if (notification.wasEvicted()) {
+            evictions.increment();
+          }
+        });
+    if (expireAfterMinutes > 0) {
+      builder.expireAfterWrite(expireAfterMinutes, TimeUnit.MINUTES);
     }
+    return builder.build();
+  }
+
+  private static CacheBackend createBackend(String type,
+                                            long memoryMaxSize,
+                                            String filePath,
+                                            int rarityInitialCapacity,
+                                            int redisFailureThreshold,
+                                            long redisRetryIntervalMillis,
+                                            int redisTimeoutMillis) {
+    switch (type.toLowerCase(Locale.ROOT)) {
+      case "redis":
+        return new RedisCacheBackend(redisFailureThreshold, redisRetryIntervalMillis,
+            redisTimeoutMillis);
+      case "memory":
+        return new MemoryCacheBackend(memoryMaxSize);
+      case "file":
+        try {
+          return new FileCacheBackend(Path.of(filePath), rarityInitialCapacity);
+        } catch (IOException e) {
+          log.error("Unable to open cache journal " + filePath + ", using memory backend!", e);
+          return new MemoryCacheBackend(memoryMaxSize);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown cache backend " + type + "!");
+    }
+  }
+
+  public boolean isAvailable() {
+    return backend.isAvailable();
+  }
+
+  void onStop(@Observes ShutdownEvent ev) {
+    backend.close();
   }
 
   /**
-   * Attempts to get value specified by key and parses the rarity from it.
+   * Attempts to get rarity of an attachment from near cache, then from backend.
    *
-   * @param key key of value to get from redis
+   * @param attachmentId snowflake of the attachment
    * @return {@link Optional} containing {@link RarityTypes} or empty.
    */
-  public Optional<RarityTypes> getAndParse(final String key) {
-    if (available && properties.isCacheEnabled()) {
-      try (Jedis jedis = jedisPool.getResource()) {
-        final String value = jedis.get(key);
-        return RarityTypes.parse(value);
+  public Optional<RarityTypes> getRarity(final long attachmentId) {
+    if (!properties.isCacheEnabled()) {
+      return Optional.empty();
+    }
+    RarityTypes nearValue = nearCache.getIfPresent(attachmentId);
+    if (nearValue != null) {
+      telemetry.getNearCacheHits().increment();
+      return Optional.of(nearValue);
+    }
+    telemetry.getNearCacheMisses().increment();
+    Optional<RarityTypes> value =
+        Optional.ofNullable(backend.getRarities(List.of(attachmentId)).get(attachmentId));
+    value.ifPresent(rarity -> nearCache.put(attachmentId, rarity));
+    return value;
+  }
+
+  /**
+   * Attempts to get classification of image content from near cache, then from backend.
+   *
+   * @param contentHash hash of the encoded image
+   * @return {@link Optional} containing {@link Classification} or empty.
+   */
+  public Optional<Classification> getClassification(final HashCode contentHash) {
+    if (!properties.isCacheEnabled()) {
+      return Optional.empty();
+    }
+    Classification nearValue = contentNearCache.getIfPresent(contentHash);
+    if (nearValue != null) {
+      return Optional.of(nearValue);
+    }
+    Optional<Classification> value = backend.getClassification(contentHash);
+    value.ifPresent(classification -> contentNearCache.put(contentHash, classification));
+    return value;
+  }
+
+  /**
+   * Saves classification of image content to near cache and to backend if caching is enabled.
+   */
+  public void saveClassification(final HashCode contentHash,
+                                 final Classification classification) {
+    if (!properties.isCacheEnabled()) {
+      return;
+    }
+    contentNearCache.put(contentHash, classification);
+    backend.saveClassification(contentHash, classification);
+  }
+
+  /**
+   * Saves rarity of an attachment to near cache and to backend if caching is enabled.
+   */
+  public void saveRarity(final long attachmentId, final RarityTypes rarity) {
+    if (!properties.isCacheEnabled()) {
+      return;
+    }
+    nearCache.put(attachmentId, rarity);
+    backend.saveRarities(Map.of(attachmentId, rarity));
+  }
+
+  /**
+   * Attempts to get rarities of all attachments from near cache, then the rest from backend
+   * in bulk.
+   *
+   * @param attachmentIds snowflakes of the attachments
+   * @return {@link Map} of snowflakes to {@link RarityTypes}, without attachments not cached.
+   */
+  public Map<Long, RarityTypes> getRarities(final Collection<Long> attachmentIds) {
+    if (!properties.isCacheEnabled() || attachmentIds.isEmpty()) {
+      return new HashMap<>();
+    }
+    Map<Long, RarityTypes> rarities = new HashMap<>(nearCache.getAllPresent(attachmentIds));
+    telemetry.getNearCacheHits().add(rarities.size());
+    telemetry.getNearCacheMisses().add(attachmentIds.size() - rarities.size());
+    List<Long> missing = attachmentIds.stream()
+        .filter(attachmentId -> !rarities.containsKey(attachmentId))
+        .collect(Collectors.toList());
+    if (!missing.isEmpty()) {
+      Map<Long, RarityTypes> stored = backend.getRarities(missing);
+      nearCache.putAll(stored);
+      rarities.putAll(stored);
+    }
+    return rarities;
+  }
+
+  /**
+   * Saves rarities of all attachments to near cache and to backend if caching is enabled.
+   */
+  public void saveRarities(final Map<Long, RarityTypes> rarities) {
+    if (!properties.isCacheEnabled() || rarities.isEmpty()) {
+      return;
+    }
+    nearCache.putAll(rarities);
+    backend.saveRarities(rarities);
+  }
+
+  /**
+   * Loads rarity counters of a user in a channel.
+   *
+   * @param guildId ID of the guild
+   * @param channelId ID of the channel
+   * @param authorId ID of the user
+   * @return {@link EnumMap} of counts of all rarities, zeros if unavailable.
+   */
+  public EnumMap<RarityTypes, Integer> getAggregate(final String guildId,
+                                                    final String channelId,
+                                                    final String authorId) {
+    EnumMap<RarityTypes, Integer> aggregate = new EnumMap<>(RarityTypes.class);
+    for (RarityTypes rarity : RarityTypes.values()) {
+      aggregate.put(rarity, 0);
+    }
+    if (properties.isCacheEnabled()) {
+      aggregate.putAll(backend.getAggregate(guildId, channelId, authorId));
+    }
+    return aggregate;
+  }
+
+  /**
+   * Replaces rarity counters of a user in a channel by counts of given messages.
+   * Only messages with known rarity which are not ignored are counted.
+   *
+   * @param guildId ID of the guild
+   * @param channelId ID of the channel
+   * @param authorId ID of the user
+   * @param messages all indexed messages of the user in the channel
+   */
+  public void replaceAggregate(final String guildId,
+                               final String channelId,
+                               final String authorId,
+                               final Collection<IndexedMessage> messages) {
+    if (!properties.isCacheEnabled()) {
+      return;
+    }
+    Map<Long, RarityTypes> contributions = new HashMap<>();
+    for (IndexedMessage message : messages) {
+      Optional<RarityTypes> rarity = message.getKnownRarity();
+      if (rarity.isPresent() && !message.isIgnored()) {
+        contributions.put(message.getMessageId(), rarity.get());
       }
     }
+    backend.replaceAggregate(guildId, channelId, authorId, contributions);
+  }
+
+  /**
+   * Updates rarity counters of message authors by current state of the messages.
+   * Messages with known rarity are counted once, ignored messages are withdrawn.
+   *
+   * @param guildId ID of the guild
+   * @param channelId ID of the channel
+   * @param messages received, classified or edited messages
+   */
+  public void updateAggregates(final String guildId,
+                               final String channelId,
+                               final Collection<IndexedMessage> messages) {
+    if (!properties.isCacheEnabled() || messages.isEmpty()) {
+      return;
+    }
+    List<CacheBackend.Contribution> contributions = new ArrayList<>(messages.size());
+    for (IndexedMessage message : messages) {
+      if (message.isIgnored()) {
+        contributions.add(
+            new CacheBackend.Contribution(message.getAuthorId(), message.getMessageId(), null));
+      } else {
+        message.getKnownRarity().ifPresent(rarity -> contributions.add(
+            new CacheBackend.Contribution(message.getAuthorId(), message.getMessageId(), rarity)));
+      }
+    }
+    backend.contribute(guildId, channelId, contributions);
+  }
+
+  /**
+   * Withdraws a deleted message, or one edited to have no attachment, from rarity counters
+   * of its author.
+   *
+   * @param guildId ID of the guild
+   * @param channelId ID of the channel
+   * @param message removed message
+   */
+  public void removeFromAggregate(final String guildId,
+                                  final String channelId,
+                                  final IndexedMessage message) {
+    if (!properties.isCacheEnabled()) {
+      return;
+    }
+    backend.contribute(guildId, channelId, List.of(
+        new CacheBackend.Contribution(message.getAuthorId(), message.getMessageId(), null)));
+  }
+
+  /**
+   * Rewrites rarities stored in legacy format to the compact format of {@link CacheCodec}.
+   *
+   * @return number of migrated entries.
+   * @throws IOException if the backend failed before all entries were migrated.
+   */
+  public long migrateLegacyRarities() throws IOException {
+    return backend.migrateLegacyRarities();
+  }
+
+  /**
+   * Loads persisted message index of a channel.
+   *
+   * @param channelId ID of the channel
+   * @return {@link Map} of message IDs to serialized {@link IndexedMessage}s, empty if unavailable.
+   */
+  public Map<String, String> getIndex(final String channelId) {
+    if (properties.isCacheEnabled()) {
+      return backend.getIndex(channelId);
+    }
+    return Map.of();
+  }
+
+  /**
+   * Loads ID of the newest message already processed by the index of a channel.
+   *
+   * @param channelId ID of the channel
+   * @return {@link Optional} containing the message ID or empty.
+   */
+  public Optional<String> getIndexHead(final String channelId) {
+    if (properties.isCacheEnabled()) {
+      return backend.getIndexHead(channelId);
+    }
     return Optional.empty();
   }
 
   /**
-   * Saves the key/value pair to database if it's available and caching is enabled.
+   * Persists new index entries of a channel together with the newest processed message ID.
+   *
+   * @param channelId ID of the channel
+   * @param entries message IDs mapped to serialized {@link IndexedMessage}s
+   * @param headId ID of the newest processed message
+   */
+  public void saveIndex(final String channelId,
+                        final Map<String, String> entries,
+                        final String headId) {
+    if (properties.isCacheEnabled()) {
+      backend.saveIndex(channelId, entries, headId);
+    }
+  }
+
+  /**
+   * Removes single entry from persisted message index of a channel.
+   *
+   * @param channelId ID of the channel
+   * @param messageId ID of the removed message
+   */
+  public void removeIndexEntry(final String channelId, final String messageId) {
+    if (properties.isCacheEnabled()) {
+      backend.removeIndexEntry(channelId, messageId);
+    }
+  }
+
+  /**
+   * Marks classification of an attachment as low confidence, so it can be reprocessed later.
+   *
+   * @param message indexed message of the attachment
    */
-  public void save(final String key, final String value) {
-    if (available && properties.isCacheEnabled()) {
-      try (Jedis jedis = jedisPool.getResource()) {
-        jedis.set(key, value);
+  public void saveLowConfidence(final IndexedMessage message) {
+    if (properties.isCacheEnabled()) {
+      backend.saveLowConfidence(message.getAttachmentId(),
+          message.getGuildId() + "|" + message.getChannelId() + "|" + message.getMessageId()
+              + "|" + message.serialize());
+    }
+  }
+
+  /**
+   * Loads messages whose attachment classification is marked as low confidence.
+   *
+   * @return {@link List} of indexed messages, empty if unavailable.
+   */
+  public List<IndexedMessage> getLowConfidence() {
+    if (!properties.isCacheEnabled()) {
+      return List.of();
+    }
+    Collection<String> entries = backend.getLowConfidence();
+    List<IndexedMessage> messages = new ArrayList<>(entries.size());
+    for (String value : entries) {
+      List<String> parts = locationSplitter.splitToList(value);
+      if (parts.size() != 4) {
+        continue;
       }
+      try {
+        IndexedMessage.deserialize(Long.parseLong(parts.get(0)), Long.parseLong(parts.get(1)),
+            parts.get(2), parts.get(3)).ifPresent(messages::add);
+      } catch (NumberFormatException e) {
+        log.warnf("Malformed low confidence entry %s!", value);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Removes low confidence mark of an attachment.
+   *
+   * @param attachmentId snowflake of the attachment
+   */
+  public void removeLowConfidence(final long attachmentId) {
+    if (properties.isCacheEnabled()) {
+      backend.removeLowConfidence(attachmentId);
     }
   }
 }
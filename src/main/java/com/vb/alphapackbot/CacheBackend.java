@@ -0,0 +1,157 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Storage behind {@link Cache}. Implementations hold rarities and classifications,
+ * rarity counters of users, persisted message indexes and low confidence marks.
+ * <p>Backends don't throw when their storage fails, they report themselves unavailable
+ * and the bot keeps working with whatever remains in process.</p>
+ */
+public interface CacheBackend {
+  /**
+   * Returns name of the backend, as selected by {@code alphapackbot.cache.backend}.
+   *
+   * @return name of the backend
+   */
+  String getName();
+
+  boolean isAvailable();
+
+  /**
+   * Loads rarities of attachments.
+   *
+   * @param attachmentIds snowflakes of the attachments
+   * @return {@link Map} of snowflakes to {@link RarityTypes}, without attachments not stored.
+   */
+  Map<Long, RarityTypes> getRarities(@NotNull Collection<Long> attachmentIds);
+
+  void saveRarities(@NotNull Map<Long, RarityTypes> rarities);
+
+  Optional<Classification> getClassification(@NotNull HashCode contentHash);
+
+  void saveClassification(@NotNull HashCode contentHash, @NotNull Classification classification);
+
+  /**
+   * Loads rarity counters of a user in a channel.
+   *
+   * @return {@link Map} of rarities to counts, without rarities never counted.
+   */
+  Map<RarityTypes, Integer> getAggregate(@NotNull String guildId,
+                                         @NotNull String channelId,
+                                         @NotNull String authorId);
+
+  /**
+   * Replaces rarity counters of a user in a channel.
+   *
+   * @param contributions IDs of all counted messages of the user mapped to their rarities
+   */
+  void replaceAggregate(@NotNull String guildId,
+                        @NotNull String channelId,
+                        @NotNull String authorId,
+                        @NotNull Map<Long, RarityTypes> contributions);
+
+  /**
+   * Moves contributions of messages to counters of their rarities atomically per message.
+   * Repeated contribution of a message with the same rarity has no effect.
+   */
+  void contribute(@NotNull String guildId,
+                  @NotNull String channelId,
+                  @NotNull List<Contribution> contributions);
+
+  /**
+   * Loads persisted message index of a channel.
+   *
+   * @return {@link Map} of message IDs to serialized {@link IndexedMessage}s.
+   */
+  Map<String, String> getIndex(@NotNull String channelId);
+
+  Optional<String> getIndexHead(@NotNull String channelId);
+
+  void saveIndex(@NotNull String channelId,
+                 @NotNull Map<String, String> entries,
+                 @NotNull String headId);
+
+  void removeIndexEntry(@NotNull String channelId, @NotNull String messageId);
+
+  /**
+   * Marks classification of an attachment as low confidence.
+   *
+   * @param attachmentId snowflake of the attachment
+   * @param location location and serialized entry of the message, see {@link Cache}
+   */
+  void saveLowConfidence(long attachmentId, @NotNull String location);
+
+  Collection<String> getLowConfidence();
+
+  void removeLowConfidence(long attachmentId);
+
+  /**
+   * Migrates entries stored in legacy format, only Redis may hold them.
+   *
+   * @return number of migrated entries.
+   * @throws IOException if the storage failed before all entries were migrated.
+   */
+  default long migrateLegacyRarities() throws IOException {
+    return 0;
+  }
+
+  /**
+   * Releases resources of the backend on shutdown.
+   */
+  default void close() {
+  }
+
+  /**
+   * Returns circuit breaker guarding the storage, if the backend has one.
+   *
+   * @return {@link Optional} of the breaker, empty for backends without remote storage
+   */
+  default Optional<CircuitBreaker> getCircuitBreaker() {
+    return Optional.empty();
+  }
+
+  /**
+   * Contribution of a message to rarity counters of its author.
+   */
+  @Getter
+  class Contribution {
+    private final long authorId;
+    private final long messageId;
+    /**
+     * Rarity the message is counted as, null withdraws the message from counters.
+     */
+    @Nullable
+    private final RarityTypes rarity;
+
+    public Contribution(long authorId, long messageId, @Nullable RarityTypes rarity) {
+      this.authorId = authorId;
+      this.messageId = messageId;
+      this.rarity = rarity;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashCode;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encoding of rarity cache entries.
+ * <p>Keys are derived from attachment snowflakes, which, unlike attachment URLs,
+ * don't change when Discord rotates CDN parameters. Values are a format version byte
+ * followed by rarity code. Classifications of image content are keyed by hash of the image,
+ * so reposted images are not decoded again, and also hold confidence.</p>
+ */
+public final class CacheCodec {
+  public static final byte FORMAT_VERSION = 1;
+  private static final String RARITY_KEY_PREFIX = "r:";
+  private static final String CONTENT_KEY_PREFIX = "h:";
+  private static final Splitter pathSplitter = Splitter.on('/').omitEmptyStrings();
+
+  private CacheCodec() {
+  }
+
+  /**
+   * Encodes cache key of the rarity of an attachment.
+   *
+   * @param attachmentId snowflake of the attachment
+   * @return key in format r:attachmentId
+   */
+  public static byte[] encodeRarityKey(long attachmentId) {
+    return (RARITY_KEY_PREFIX + attachmentId).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encodes cache value of a rarity.
+   *
+   * @param rarity rarity to encode
+   * @return format version byte followed by rarity code
+   */
+  public static byte[] encodeRarity(@NotNull RarityTypes rarity) {
+    return new byte[] {FORMAT_VERSION, rarity.getCode()};
+  }
+
+  /**
+   * Decodes cache value of a rarity.
+   *
+   * @param value value created by {@link #encodeRarity(RarityTypes)}
+   * @return {@link Optional} containing {@link RarityTypes} or empty if value is missing,
+   *     malformed or of unknown format version.
+   */
+  public static Optional<RarityTypes> decodeRarity(byte @Nullable [] value) {
+    if (value == null || value.length != 2 || value[0] != FORMAT_VERSION) {
+      return Optional.empty();
+    }
+    return RarityTypes.fromCode(value[1]);
+  }
+
+  /**
+   * Encodes cache key of the classification of image content.
+   *
+   * @param contentHash hash of the encoded image
+   * @return key in format h:hexadecimalHash
+   */
+  public static byte[] encodeContentKey(@NotNull HashCode contentHash) {
+    return (CONTENT_KEY_PREFIX + contentHash).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encodes cache value of a classification.
+   *
+   * @param classification classification to encode
+   * @return format version byte followed by rarity code and confidence in percent
+   */
+  public static byte[] encodeClassification(@NotNull Classification classification) {
+    return new byte[] {FORMAT_VERSION, classification.getRarity().getCode(),
+        (byte) Math.round(classification.getConfidence() * 100)};
+  }
+
+  /**
+   * Decodes cache value of a classification.
+   *
+   * @param value value created by {@link #encodeClassification(Classification)}
+   * @return {@link Optional} containing {@link Classification} or empty if value is missing,
+   *     malformed or of unknown format version.
+   */
+  public static Optional<Classification> decodeClassification(byte @Nullable [] value) {
+    if (value == null || value.length != 3 || value[0] != FORMAT_VERSION) {
+      return Optional.empty();
+    }
+    return RarityTypes.fromCode(value[1])
+        .map(rarity -> new Classification(rarity, value[2] / 100.0));
+  }
+
+  /**
+   * Extracts attachment snowflake from a Discord attachment URL
+   * in format https://host/attachments/channelId/attachmentId/fileName.
+   *
+   * @param url attachment URL
+   * @return {@link OptionalLong} containing the snowflake or empty if URL is not recognized.
+   */
+  public static OptionalLong parseAttachmentId(@NotNull String url) {
+    int pathStart = url.indexOf("/attachments/");
+    if (pathStart < 0) {
+      return OptionalLong.empty();
+    }
+    List<String> segments = pathSplitter.splitToList(url.substring(pathStart));
+    if (segments.size() < 4) {
+      return OptionalLong.empty();
+    }
+    try {
+      return OptionalLong.of(Long.parseLong(segments.get(2)));
+    } catch (NumberFormatException e) {
+      return OptionalLong.empty();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Circuit breaker guarding calls to a remote service.
+ * <p>Calls are allowed while the breaker is closed. Given number of consecutive failures opens
+ * it, calls then fail fast without touching the service. Open breaker is half-opened by
+ * a probe, which closes it if the service responds and opens it again otherwise.</p>
+ */
+public class CircuitBreaker {
+  private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+  private final String name;
+  private final int failureThreshold;
+  private final AtomicReference<State> state;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final LongAdder openings = new LongAdder();
+
+  /**
+   * Creates the breaker.
+   *
+   * @param name name of the guarded service for logging
+   * @param failureThreshold consecutive failures which open the breaker
+   * @param initialState state of the breaker before the first call or probe
+   */
+  public CircuitBreaker(@NotNull String name, int failureThreshold, @NotNull State initialState) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.state = new AtomicReference<>(initialState);
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  /**
+   * Returns how many times the breaker opened after failures.
+   *
+   * @return number of openings
+   */
+  public long getOpenings() {
+    return openings.sum();
+  }
+
+  public boolean allowsCalls() {
+    return state.get() == State.CLOSED;
+  }
+
+  public void recordSuccess() {
+    consecutiveFailures.set(0);
+  }
+
+  /**
+   * Records failed call, opening the breaker once failures reach the threshold.
+   *
+   * @param cause cause of the failure for logging
+   */
+  public void recordFailure(@NotNull Exception cause) {
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold
+        && state.compareAndSet(State.CLOSED, State.OPEN)) {
+      openings.increment();
+      log.warnf("Circuit breaker of %s opened after %d failures: %s", name, failureThreshold,
+          cause.toString());
+    }
+  }
+
+  /**
+   * Probes the service if the breaker is open, closing the breaker if the probe succeeds.
+   *
+   * @param probe check of the service, returning true if it's healthy
+   */
+  public void probe(@NotNull BooleanSupplier probe) {
+    if (!state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      return;
+    }
+    boolean healthy;
+    try {
+      healthy = probe.getAsBoolean();
+    } catch (RuntimeException e) {
+      healthy = false;
+    }
+    if (healthy) {
+      consecutiveFailures.set(0);
+      state.set(State.CLOSED);
+      log.infof("Circuit breaker of %s closed.", name);
+    } else {
+      state.set(State.OPEN);
+    }
+  }
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Rarity classified from an image with confidence of the classification.
+ */
+@Getter
+public class Classification {
+  private final RarityTypes rarity;
+  /**
+   * Share of sampled pixels which voted for the rarity, 0 for {@link RarityTypes#UNKNOWN}.
+   */
+  private final double confidence;
+
+  public Classification(@NotNull RarityTypes rarity, double confidence) {
+    this.rarity = rarity;
+    this.confidence = confidence;
+  }
+
+  @Override
+  public String toString() {
+    return rarity + " (" + Math.round(confidence * 100) + "%)";
+  }
+}
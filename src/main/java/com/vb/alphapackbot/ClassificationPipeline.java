@@ -0,0 +1,122 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Classifies attachments in parallel stages: download, then decode and classify, then persist.
+ * Downloads are asynchronous and limited by {@link ImageDownloader}. Decoding has bounded
+ * parallelism and queue, when the queue is full, the completing download runs the task itself.
+ */
+@Singleton
+public class ClassificationPipeline {
+  final RarityClassifier classifier;
+  final ImageDownloader downloader;
+  private final ThreadPoolExecutor decodeExecutor;
+
+  @Inject
+  ClassificationPipeline(
+      final RarityClassifier classifier,
+      final ImageDownloader downloader,
+      @ConfigProperty(name = "alphapackbot.pipeline.decode-parallelism", defaultValue = "2")
+      final int decodeParallelism,
+      @ConfigProperty(name = "alphapackbot.pipeline.queue-size", defaultValue = "16")
+      final int queueSize) {
+    this.classifier = classifier;
+    this.downloader = downloader;
+    this.decodeExecutor = createExecutor("decode-%d", decodeParallelism, queueSize);
+  }
+
+  /**
+   * Submits messages for classification. Cached rarities are loaded in bulk first,
+   * so only images with unknown rarity enter the pipeline. Computed rarities are
+   * saved to cache in bulk once all images are classified. Attachments already being
+   * classified by another submission share its result instead of being downloaded again.
+   *
+   * @param messages indexed messages to classify
+   * @return {@link CompletableFuture}s in order of messages, completed with the rarity or
+   *     exceptionally with {@link IOException} if the image couldn't be downloaded or
+   *     {@link UncheckedIOException} if it couldn't be decoded.
+   */
+  public List<CompletableFuture<RarityTypes>> submitAll(@NotNull List<IndexedMessage> messages) {
+    classifier.loadRarities(messages);
+    Queue<IndexedMessage> computed = new ConcurrentLinkedQueue<>();
+    List<CompletableFuture<RarityTypes>> rarities = new ArrayList<>(messages.size());
+    for (IndexedMessage message : messages) {
+      Optional<RarityTypes> knownRarity = message.getKnownRarity();
+      if (knownRarity.isPresent()) {
+        rarities.add(CompletableFuture.completedFuture(knownRarity.get()));
+        continue;
+      }
+      rarities.add(classifier
+          .classifyOnce(message, () -> classify(message))
+          .whenComplete((rarity, throwable) -> {
+            if (rarity != null) {
+              computed.add(message);
+            }
+          }));
+    }
+    CompletableFuture.allOf(rarities.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((result, throwable) -> classifier.saveRarities(computed));
+    return rarities;
+  }
+
+  /**
+   * Downloads whole image and decodes it on decode thread, or reads only the needed part of the
+   * image if range requests are enabled.
+   */
+  private CompletableFuture<RarityTypes> classify(@NotNull IndexedMessage message) {
+    String url = classifier.getImageUrl(message);
+    if (downloader.isRangeRequestsEnabled()) {
+      return downloader.readPartiallyAsync(url,
+          in -> classifier.record(message, classifier.classify(in)));
+    }
+    return downloader.downloadAsync(url)
+        .thenApplyAsync(image -> classify(message, image), decodeExecutor);
+  }
+
+  private RarityTypes classify(@NotNull IndexedMessage message, byte @NotNull [] image) {
+    try {
+      return classifier.record(message, classifier.classify(image));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor(String nameFormat, int threads, int queueSize) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+}
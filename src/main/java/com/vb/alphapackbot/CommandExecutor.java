@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Executes commands on worker threads.
+ * <p>Available types are "virtual" (virtual thread per command, JDK 21+), "platform"
+ * (fixed pool of platform threads) and "auto", which prefers virtual threads when available.
+ * Platform threads run at most {@code threads} commands concurrently, virtual threads
+ * at most {@code virtual-threads}. Both types queue at most {@code queue-size} more,
+ * further commands are rejected.</p>
+ */
+@Singleton
+public class CommandExecutor implements Executor {
+  private static final Logger log = Logger.getLogger(CommandExecutor.class);
+  final Telemetry telemetry;
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final Semaphore queueSlots;
+
+  @Inject
+  CommandExecutor(
+      final Telemetry telemetry,
+      @ConfigProperty(name = "alphapackbot.executor.type", defaultValue = "auto")
+      final String type,
+      @ConfigProperty(name = "alphapackbot.executor.threads", defaultValue = "5")
+      final int threads,
+      @ConfigProperty(name = "alphapackbot.executor.virtual-threads", defaultValue = "64")
+      final int virtualThreads,
+      @ConfigProperty(name = "alphapackbot.executor.queue-size", defaultValue = "100")
+      final int queueSize) {
+    this.telemetry = telemetry;
+    Optional<ExecutorService> virtualExecutor = Optional.empty();
+    String normalizedType = type.toLowerCase(Locale.ROOT);
+    if (normalizedType.equals("virtual") || normalizedType.equals("auto")) {
+      virtualExecutor = createVirtualThreadExecutor();
+      if (virtualExecutor.isEmpty() && normalizedType.equals("virtual")) {
+        log.warn("Virtual threads are not available, falling back to platform threads!");
+      }
+    }
+    if (virtualExecutor.isPresent()) {
+      this.executor = virtualExecutor.get();
+      this.permits = new Semaphore(virtualThreads);
+      this.queueSlots = new Semaphore(queueSize);
+      log.infof("Executing commands on virtual threads, %d at once.", virtualThreads);
+    } else {
+      this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueSize),
+          new ThreadFactoryBuilder().setNameFormat("command-%d").build());
+      this.permits = null;
+      this.queueSlots = null;
+      log.infof("Executing commands on %d platform threads.", threads);
+    }
+  }
+
+  /**
+   * Executes the command on a worker thread.
+   *
+   * @param command command to execute
+   * @throws RejectedExecutionException if the queue is full.
+   */
+  @Override
+  public void execute(@NotNull Runnable command) {
+    if (queueSlots != null && !queueSlots.tryAcquire()) {
+      reject();
+    }
+    telemetry.getCommandsQueued().incrementAndGet();
+    try {
+      executor.execute(() -> {
+        try {
+          if (permits != null) {
+            permits.acquireUninterruptibly();
+            queueSlots.release();
+          }
+          telemetry.getCommandsQueued().decrementAndGet();
+          telemetry.getCommandsActive().incrementAndGet();
+          command.run();
+        } finally {
+          telemetry.getCommandsActive().decrementAndGet();
+          if (permits != null) {
+            permits.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      telemetry.getCommandsQueued().decrementAndGet();
+      if (queueSlots != null) {
+        queueSlots.release();
+      }
+      reject();
+    }
+  }
+
+  private void reject() {
+    telemetry.getCommandsRejected().increment();
+    throw new RejectedExecutionException("Command queue is full!");
+  }
+
+  private static Optional<ExecutorService> createVirtualThreadExecutor() {
+    try {
+      return Optional.of((ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,455 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache backend persisting everything to a local journal file, without any external service.
+ * <p>Rarities are kept in a {@link MappedRarityStore} next to the journal. Other state,
+ * message indexes included, is held in process as by {@link MemoryCacheBackend} without
+ * bounds, every change of it is appended to the journal and the journal is replayed on start.
+ * Each record carries its length and checksum, so a record torn by a crash is detected and
+ * cut off on replay. When the journal grows to twice the size of the state, it is compacted
+ * by writing the state to a new file which atomically replaces the journal.</p>
+ * <p>Changes are flushed to the operating system on every commit, so they survive a crash
+ * of the process, not necessarily of the machine.</p>
+ */
+public class FileCacheBackend extends MemoryCacheBackend {
+  private static final Logger log = Logger.getLogger(FileCacheBackend.class);
+  private static final int MAGIC = 0x41504243;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+  private static final int MAX_RECORD_LENGTH = 1 << 20;
+  private static final long MIN_COMPACTION_LENGTH = 1 << 20;
+  private static final byte CLASSIFICATION = 2;
+  private static final byte AGGREGATE_RESET = 3;
+  private static final byte CONTRIBUTION = 4;
+  private static final byte INDEX_ENTRY = 5;
+  private static final byte INDEX_HEAD = 6;
+  private static final byte LOW_CONFIDENCE = 7;
+  private final Path path;
+  private final MappedRarityStore rarityStore;
+  private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+  private final DataOutputStream record = new DataOutputStream(recordBuffer);
+  private final CRC32 crc = new CRC32();
+  private DataOutputStream journal;
+  private long journalLength;
+  private long compactedLength;
+  private volatile boolean available = true;
+
+  /**
+   * Opens the journal and the rarity store, replaying the journal if it exists.
+   *
+   * @param path path of the journal file, the rarity store has suffix {@code .rarities}
+   * @param rarityInitialCapacity initial capacity of a new rarity store
+   * @throws IOException if the journal or the rarity store can't be read or created
+   */
+  public FileCacheBackend(@NotNull Path path, int rarityInitialCapacity) throws IOException {
+    super(Long.MAX_VALUE, true);
+    this.path = path;
+    this.rarityStore = new MappedRarityStore(
+        path.resolveSibling(path.getFileName() + ".rarities"), rarityInitialCapacity);
+    if (Files.exists(path)) {
+      journalLength = replay();
+      log.infof("Replayed %d bytes of cache journal %s.", journalLength, path);
+    } else {
+      writeHeader(path);
+      journalLength = HEADER_LENGTH;
+    }
+    compactedLength = journalLength;
+    journal = openForAppend(path);
+  }
+
+  @Override
+  public String getName() {
+    return "file";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Looks rarities up in the rarity store, without locking.
+   */
+  @Override
+  public Map<Long, RarityTypes> getRarities(@NotNull Collection<Long> attachmentIds) {
+    Map<Long, RarityTypes> rarities = new HashMap<>();
+    for (Long attachmentId : attachmentIds) {
+      rarityStore.get(attachmentId).ifPresent(rarity -> rarities.put(attachmentId, rarity));
+    }
+    return rarities;
+  }
+
+  /**
+   * Saves rarities to the rarity store, which orders writes by itself.
+   */
+  @Override
+  public void saveRarities(@NotNull Map<Long, RarityTypes> values) {
+    values.forEach(rarityStore::put);
+  }
+
+  @Override
+  protected void putClassification(@NotNull HashCode contentHash,
+                                   @NotNull Classification classification) {
+    super.putClassification(contentHash, classification);
+    append(() -> {
+      record.writeByte(CLASSIFICATION);
+      writeBytes(record, contentHash.asBytes());
+      writeBytes(record, CacheCodec.encodeClassification(classification));
+    });
+  }
+
+  @Override
+  protected void resetAggregate(@NotNull String key) {
+    super.resetAggregate(key);
+    append(() -> {
+      record.writeByte(AGGREGATE_RESET);
+      record.writeUTF(key);
+    });
+  }
+
+  @Override
+  protected void putContribution(@NotNull String key, long messageId,
+                                 @Nullable RarityTypes rarity) {
+    super.putContribution(key, messageId, rarity);
+    append(() -> {
+      record.writeByte(CONTRIBUTION);
+      record.writeUTF(key);
+      record.writeLong(messageId);
+      writeRarity(record, rarity);
+    });
+  }
+
+  @Override
+  protected void putIndexEntry(@NotNull String channelId, @NotNull String messageId,
+                               @Nullable String value) {
+    super.putIndexEntry(channelId, messageId, value);
+    append(() -> {
+      record.writeByte(INDEX_ENTRY);
+      record.writeUTF(channelId);
+      record.writeUTF(messageId);
+      writeString(record, value);
+    });
+  }
+
+  @Override
+  protected void putIndexHead(@NotNull String channelId, @NotNull String headId) {
+    super.putIndexHead(channelId, headId);
+    append(() -> {
+      record.writeByte(INDEX_HEAD);
+      record.writeUTF(channelId);
+      record.writeUTF(headId);
+    });
+  }
+
+  @Override
+  protected void putLowConfidence(long attachmentId, @Nullable String location) {
+    super.putLowConfidence(attachmentId, location);
+    append(() -> {
+      record.writeByte(LOW_CONFIDENCE);
+      record.writeLong(attachmentId);
+      writeString(record, location);
+    });
+  }
+
+  /**
+   * Flushes appended records and compacts the journal once it grew enough.
+   */
+  @Override
+  protected void commit() {
+    if (!available) {
+      return;
+    }
+    try {
+      journal.flush();
+      if (journalLength > Math.max(MIN_COMPACTION_LENGTH, compactedLength * 2)) {
+        compact();
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void append(RecordWriter writer) {
+    if (!available) {
+      return;
+    }
+    try {
+      recordBuffer.reset();
+      writer.write();
+      writeRecord(journal, recordBuffer);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void writeRecord(DataOutputStream out, ByteArrayOutputStream payload)
+      throws IOException {
+    crc.reset();
+    crc.update(payload.toByteArray());
+    out.writeInt(payload.size());
+    out.writeInt((int) crc.getValue());
+    payload.writeTo(out);
+    if (out == journal) {
+      journalLength += 8 + payload.size();
+    }
+  }
+
+  private void fail(IOException e) {
+    log.error("Unable to write cache journal " + path + ", changes are no longer persisted!", e);
+    available = false;
+  }
+
+  /**
+   * Writes whole state to a new journal and atomically replaces the current one with it.
+   */
+  private void compact() throws IOException {
+    Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+    writeHeader(compacted);
+    long length = HEADER_LENGTH;
+    try (DataOutputStream out = openForAppend(compacted)) {
+      for (Map.Entry<HashCode, Classification> entry : classifications.asMap().entrySet()) {
+        recordBuffer.reset();
+        record.writeByte(CLASSIFICATION);
+        writeBytes(record, entry.getKey().asBytes());
+        writeBytes(record, CacheCodec.encodeClassification(entry.getValue()));
+        length += writeSnapshotRecord(out);
+      }
+      for (Map.Entry<String, Map<Long, RarityTypes>> aggregate : aggregates.entrySet()) {
+        for (Map.Entry<Long, RarityTypes> entry : aggregate.getValue().entrySet()) {
+          recordBuffer.reset();
+          record.writeByte(CONTRIBUTION);
+          record.writeUTF(aggregate.getKey());
+          record.writeLong(entry.getKey());
+          writeRarity(record, entry.getValue());
+          length += writeSnapshotRecord(out);
+        }
+      }
+      for (Map.Entry<String, Map<String, String>> index : indexes.entrySet()) {
+        for (Map.Entry<String, String> entry : index.getValue().entrySet()) {
+          recordBuffer.reset();
+          record.writeByte(INDEX_ENTRY);
+          record.writeUTF(index.getKey());
+          record.writeUTF(entry.getKey());
+          writeString(record, entry.getValue());
+          length += writeSnapshotRecord(out);
+        }
+      }
+      for (Map.Entry<String, String> entry : indexHeads.entrySet()) {
+        recordBuffer.reset();
+        record.writeByte(INDEX_HEAD);
+        record.writeUTF(entry.getKey());
+        record.writeUTF(entry.getValue());
+        length += writeSnapshotRecord(out);
+      }
+      for (Map.Entry<Long, String> entry : lowConfidence.entrySet()) {
+        recordBuffer.reset();
+        record.writeByte(LOW_CONFIDENCE);
+        record.writeLong(entry.getKey());
+        writeString(record, entry.getValue());
+        length += writeSnapshotRecord(out);
+      }
+    }
+    try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    journal.close();
+    Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    journal = openForAppend(path);
+    log.infof("Compacted cache journal from %d to %d bytes.", journalLength, length);
+    journalLength = length;
+    compactedLength = length;
+  }
+
+  /**
+   * Flushes the journal and closes it together with the rarity store.
+   */
+  @Override
+  public synchronized void close() {
+    try {
+      journal.close();
+      rarityStore.close();
+    } catch (IOException e) {
+      log.error("Unable to close cache journal " + path + "!", e);
+    }
+    available = false;
+  }
+
+  private long writeSnapshotRecord(DataOutputStream out) throws IOException {
+    writeRecord(out, recordBuffer);
+    return 8 + recordBuffer.size();
+  }
+
+  /**
+   * Applies all intact records of the journal and cuts off a torn tail.
+   *
+   * @return length of the intact part of the journal
+   */
+  private long replay() throws IOException {
+    long length;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException("File " + path + " is not a cache journal of known version!");
+      }
+      length = HEADER_LENGTH;
+      while (true) {
+        byte[] payload = readRecord(in);
+        if (payload == null) {
+          break;
+        }
+        apply(new DataInputStream(new ByteArrayInputStream(payload)));
+        length += 8 + payload.length;
+      }
+    }
+    if (length < Files.size(path)) {
+      log.warnf("Cutting off %d bytes of torn record at the end of cache journal %s.",
+          Files.size(path) - length, path);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.truncate(length);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Reads payload of the next record.
+   *
+   * @return payload or null at the end of the journal or if the record is torn.
+   */
+  private byte @Nullable [] readRecord(DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      int checksum = in.readInt();
+      if (length <= 0 || length > MAX_RECORD_LENGTH) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      crc.reset();
+      crc.update(payload);
+      return (int) crc.getValue() == checksum ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private void apply(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case CLASSIFICATION:
+        HashCode contentHash = HashCode.fromBytes(readBytes(in));
+        CacheCodec.decodeClassification(readBytes(in))
+            .ifPresent(classification -> super.putClassification(contentHash, classification));
+        break;
+      case AGGREGATE_RESET:
+        super.resetAggregate(in.readUTF());
+        break;
+      case CONTRIBUTION:
+        super.putContribution(in.readUTF(), in.readLong(), readRarity(in));
+        break;
+      case INDEX_ENTRY:
+        super.putIndexEntry(in.readUTF(), in.readUTF(), readString(in));
+        break;
+      case INDEX_HEAD:
+        super.putIndexHead(in.readUTF(), in.readUTF());
+        break;
+      case LOW_CONFIDENCE:
+        super.putLowConfidence(in.readLong(), readString(in));
+        break;
+      default:
+        log.warnf("Skipping cache journal record of unknown type %d.", type);
+    }
+  }
+
+  private static void writeHeader(Path path) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+    }
+  }
+
+  private static DataOutputStream openForAppend(Path path) throws IOException {
+    OutputStream out = Files.newOutputStream(path, StandardOpenOption.APPEND);
+    return new DataOutputStream(new BufferedOutputStream(out));
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    out.writeShort(value.length);
+    out.write(value);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] value = new byte[in.readUnsignedShort()];
+    in.readFully(value);
+    return value;
+  }
+
+  private static void writeString(DataOutputStream out, @Nullable String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static @Nullable String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeRarity(DataOutputStream out, @Nullable RarityTypes rarity)
+      throws IOException {
+    out.writeBoolean(rarity != null);
+    if (rarity != null) {
+      out.writeByte(rarity.getCode());
+    }
+  }
+
+  private static @Nullable RarityTypes readRarity(DataInputStream in) throws IOException {
+    return in.readBoolean() ? RarityTypes.fromCode(in.readByte()).orElse(null) : null;
+  }
+
+  @FunctionalInterface
+  private interface RecordWriter {
+    void write() throws IOException;
+  }
+}
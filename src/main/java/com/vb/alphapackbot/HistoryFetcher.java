@@ -0,0 +1,193 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import net.dv8tion.jda.api.exceptions.RateLimitedException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Schedules history page requests of all commands.
+ * <p>Requests are queued per rate limit bucket (channel) and dispatched round-robin across
+ * buckets, so a long history walk doesn't starve other channels. Concurrency adapts to the
+ * remaining budget: it grows by one request per window of successful requests and is halved
+ * whenever Discord rate limits a request. A rate limited request is not dropped, its bucket
+ * is paused for the requested time and the same page is requested again.</p>
+ */
+@Singleton
+public class HistoryFetcher {
+  private static final Logger log = Logger.getLogger(HistoryFetcher.class);
+  final Telemetry telemetry;
+  private final int maxConcurrency;
+  private final LinkedHashMap<Long, ArrayDeque<PageRequest<?>>> queues = new LinkedHashMap<>();
+  private final Map<Long, Long> pausedUntil = new HashMap<>();
+  private final ExecutorService workers = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("history-%d").setDaemon(true).build());
+  private double concurrency;
+  private int running;
+
+  @Inject
+  HistoryFetcher(
+      final Telemetry telemetry,
+      @ConfigProperty(name = "alphapackbot.history.max-concurrency", defaultValue = "4")
+      final int maxConcurrency) {
+    this.telemetry = telemetry;
+    this.maxConcurrency = maxConcurrency;
+    this.concurrency = maxConcurrency;
+    telemetry.getHistoryConcurrency().set(maxConcurrency);
+    Thread dispatcher = new Thread(this::dispatch, "history-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Submits history page request. Request should fail fast with {@link RateLimitedException}
+   * instead of waiting for the rate limit, e.g. by {@code complete(false)}.
+   *
+   * @param bucket rate limit bucket of the request, ID of the channel
+   * @param page request fetching the page
+   * @return {@link CompletableFuture} completed with the page, or exceptionally if the request
+   *     failed with other exception than {@link RateLimitedException}.
+   */
+  public <T> CompletableFuture<T> submit(long bucket, @NotNull Callable<T> page) {
+    PageRequest<T> request = new PageRequest<>(bucket, page);
+    synchronized (this) {
+      queues.computeIfAbsent(bucket, id -> new ArrayDeque<>()).addLast(request);
+      telemetry.getHistoryPagesQueued().incrementAndGet();
+      notifyAll();
+    }
+    return request.result;
+  }
+
+  private void dispatch() {
+    while (true) {
+      try {
+        PageRequest<?> request = take();
+        workers.execute(() -> execute(request));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Waits for a free concurrency slot and takes request of the next bucket which isn't paused.
+   * Taken bucket is moved to the end of the queue.
+   */
+  private synchronized PageRequest<?> take() throws InterruptedException {
+    while (true) {
+      long now = System.nanoTime();
+      long wakeUp = Long.MAX_VALUE;
+      if (running < (int) concurrency) {
+        Iterator<Map.Entry<Long, ArrayDeque<PageRequest<?>>>> iterator =
+            queues.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<Long, ArrayDeque<PageRequest<?>>> entry = iterator.next();
+          long paused = pausedUntil.getOrDefault(entry.getKey(), now);
+          if (paused - now > 0) {
+            wakeUp = Math.min(wakeUp, paused - now);
+            continue;
+          }
+          pausedUntil.remove(entry.getKey());
+          iterator.remove();
+          PageRequest<?> request = entry.getValue().pollFirst();
+          if (!entry.getValue().isEmpty()) {
+            queues.put(entry.getKey(), entry.getValue());
+          }
+          running++;
+          telemetry.getHistoryPagesQueued().decrementAndGet();
+          telemetry.getHistoryWaitMillis()
+              .add(TimeUnit.NANOSECONDS.toMillis(now - request.queuedAt));
+          return request;
+        }
+      }
+      if (wakeUp == Long.MAX_VALUE) {
+        wait();
+      } else {
+        TimeUnit.NANOSECONDS.timedWait(this, wakeUp);
+      }
+    }
+  }
+
+  private <T> void execute(@NotNull PageRequest<T> request) {
+    try {
+      T page = request.page.call();
+      synchronized (this) {
+        concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+        onFinished();
+      }
+      telemetry.getHistoryPagesFetched().increment();
+      request.result.complete(page);
+    } catch (RateLimitedException e) {
+      synchronized (this) {
+        concurrency = Math.max(1, concurrency / 2);
+        pausedUntil.put(request.bucket,
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(e.getRetryAfter()));
+        ArrayDeque<PageRequest<?>> queue = queues.remove(request.bucket);
+        if (queue == null) {
+          queue = new ArrayDeque<>();
+        }
+        request.queuedAt = System.nanoTime();
+        queue.addFirst(request);
+        queues.put(request.bucket, queue);
+        telemetry.getHistoryPagesQueued().incrementAndGet();
+        onFinished();
+      }
+      telemetry.getHistoryRateLimits().increment();
+      log.warnf("History of channel %d rate limited, retrying in %d ms.",
+          request.bucket, e.getRetryAfter());
+    } catch (Exception e) {
+      synchronized (this) {
+        onFinished();
+      }
+      request.result.completeExceptionally(e);
+    }
+  }
+
+  private void onFinished() {
+    running--;
+    telemetry.getHistoryConcurrency().set((int) concurrency);
+    notifyAll();
+  }
+
+  private static class PageRequest<T> {
+    private final long bucket;
+    private final Callable<T> page;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private long queuedAt = System.nanoTime();
+
+    PageRequest(long bucket, Callable<T> page) {
+      this.bucket = bucket;
+      this.page = page;
+    }
+  }
+}
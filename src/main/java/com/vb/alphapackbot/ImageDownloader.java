@@ -0,0 +1,243 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import lombok.Getter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Downloads images over a shared, keep-alive {@link HttpClient}, preferring HTTP/2.
+ * <p>Downloads are asynchronous and don't occupy a thread while waiting for the network.
+ * At most {@code max-concurrent-streams} downloads run at once, further ones wait in a queue.
+ * When range requests are enabled, images can be read partially, see
+ * {@link #readPartiallyAsync(String, StreamReader)}.
+ * Latency of every successful download is recorded in {@link Telemetry}.</p>
+ */
+@Singleton
+public class ImageDownloader {
+  final Telemetry telemetry;
+  private final HttpClient httpClient;
+  private final Duration requestTimeout;
+  private final Semaphore permits;
+  private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+  private final ExecutorService streamExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("stream-%d").setDaemon(true).build());
+  @Getter
+  private final boolean rangeRequestsEnabled;
+  private final int rangeChunkSize;
+
+  @Inject
+  ImageDownloader(
+      final Telemetry telemetry,
+      @ConfigProperty(name = "alphapackbot.http.connect-timeout-millis", defaultValue = "5000")
+      final long connectTimeoutMillis,
+      @ConfigProperty(name = "alphapackbot.http.request-timeout-millis", defaultValue = "30000")
+      final long requestTimeoutMillis,
+      @ConfigProperty(name = "alphapackbot.http.max-concurrent-streams", defaultValue = "8")
+      final int maxConcurrentStreams,
+      @ConfigProperty(name = "alphapackbot.http.range-requests.enabled", defaultValue = "false")
+      final boolean rangeRequestsEnabled,
+      @ConfigProperty(name = "alphapackbot.http.range-requests.chunk-size", defaultValue = "65536")
+      final int rangeChunkSize) {
+    this.telemetry = telemetry;
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+        .build();
+    this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+    this.permits = new Semaphore(maxConcurrentStreams);
+    this.rangeRequestsEnabled = rangeRequestsEnabled;
+    this.rangeChunkSize = rangeChunkSize;
+  }
+
+  /**
+   * Downloads image asynchronously.
+   *
+   * @param url URL of the image
+   * @return {@link CompletableFuture} completed with the encoded image, or exceptionally with
+   *     {@link IOException} if the download failed or the server didn't respond with success.
+   */
+  public CompletableFuture<byte[]> downloadAsync(@NotNull String url) {
+    return limit(() -> send(url).thenApply(body -> {
+      telemetry.getDownloadedBytes().add(body.length);
+      return body;
+    }));
+  }
+
+  /**
+   * Reads image asynchronously from a stream which downloads only the part that is read,
+   * using HTTP Range requests, see {@link RangeInputStream}. Reading blocks a stream thread,
+   * concurrency is limited like concurrency of downloads.
+   *
+   * @param url URL of the image
+   * @param reader reads the needed part of the image from the stream
+   * @return {@link CompletableFuture} completed with result of the reader, or exceptionally with
+   *     {@link IOException} if the download or reading failed.
+   */
+  public <T> CompletableFuture<T> readPartiallyAsync(@NotNull String url,
+                                                     @NotNull StreamReader<T> reader) {
+    return limit(() -> CompletableFuture.supplyAsync(() -> {
+      try (InputStream in = new RangeInputStream(httpClient, URI.create(url), requestTimeout,
+          rangeChunkSize, telemetry.getDownloadedBytes())) {
+        return reader.read(in);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, streamExecutor));
+  }
+
+  /**
+   * Downloads image, blocking until it's downloaded.
+   *
+   * @param url URL of the image
+   * @return encoded image
+   * @throws IOException if the download failed or the server didn't respond with success.
+   */
+  public byte[] download(@NotNull String url) throws IOException {
+    return await(downloadAsync(url));
+  }
+
+  /**
+   * Reads image partially, blocking until it's read,
+   * see {@link #readPartiallyAsync(String, StreamReader)}.
+   *
+   * @param url URL of the image
+   * @param reader reads the needed part of the image from the stream
+   * @return result of the reader
+   * @throws IOException if the download or reading failed.
+   */
+  public <T> T readPartially(@NotNull String url, @NotNull StreamReader<T> reader)
+      throws IOException {
+    return await(readPartiallyAsync(url, reader));
+  }
+
+  private static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private CompletableFuture<byte[]> send(@NotNull String url) {
+    HttpRequest request;
+    try {
+      request = HttpRequest.newBuilder(URI.create(url))
+          .timeout(requestTimeout)
+          .GET()
+          .build();
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(new IOException("Invalid URL " + url, e));
+    }
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+        .thenCompose(response -> {
+          if (response.statusCode() / 100 != 2) {
+            return CompletableFuture.failedFuture(
+                new IOException("Unexpected status " + response.statusCode() + " of " + url));
+          }
+          return CompletableFuture.completedFuture(response.body());
+        });
+  }
+
+  /**
+   * Runs the download once a permit is free. Latency and failures are recorded.
+   */
+  private <T> CompletableFuture<T> limit(Supplier<CompletableFuture<T>> download) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    pending.add(() -> {
+      long start = System.nanoTime();
+      CompletableFuture<T> started;
+      try {
+        started = download.get();
+      } catch (RuntimeException e) {
+        started = CompletableFuture.failedFuture(e);
+      }
+      started.whenComplete((value, throwable) -> {
+        permits.release();
+        startPending();
+        if (throwable != null) {
+          telemetry.getDownloadsFailed().increment();
+          result.completeExceptionally(unwrap(throwable));
+        } else {
+          telemetry.getDownloadLatency().record(System.nanoTime() - start);
+          result.complete(value);
+        }
+      });
+    });
+    startPending();
+    return result;
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    if (throwable instanceof CompletionException && throwable.getCause() != null) {
+      throwable = throwable.getCause();
+    }
+    if (throwable instanceof UncheckedIOException) {
+      return throwable.getCause();
+    }
+    if (throwable instanceof IllegalArgumentException) {
+      return new IOException(throwable.getMessage(), throwable);
+    }
+    return throwable;
+  }
+
+  /**
+   * Starts pending downloads while there are free permits.
+   */
+  private void startPending() {
+    while (!pending.isEmpty() && permits.tryAcquire()) {
+      Runnable download = pending.poll();
+      if (download == null) {
+        permits.release();
+        continue;
+      }
+      download.run();
+    }
+  }
+
+  /**
+   * Reads a result from an image stream.
+   */
+  @FunctionalInterface
+  public interface StreamReader<T> {
+    T read(InputStream in) throws IOException;
+  }
+}
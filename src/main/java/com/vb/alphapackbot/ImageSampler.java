@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Optional;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads small patches of pixels of images without decoding them into a full size raster.
+ */
+public final class ImageSampler {
+  private ImageSampler() {
+  }
+
+  /**
+   * Reads colours of a square patch of pixels, clipped to the image. The centre is located
+   * from image dimensions read from the header, only the patch is decoded into the raster.
+   * Truecolour PNG images are decoded by {@link PngPatchDecoder}, which stops reading the stream
+   * after the last row of the patch, other images are decoded by ImageIO.
+   *
+   * @param in stream containing the image
+   * @param locator locates the centre of the patch from width and height of the image
+   * @param radius number of pixels sampled on each side of the centre, 0 for single pixel
+   * @return colours of the pixels in the default RGB colour model, row by row
+   * @throws IOException if the format is not supported or an I/O exception occurs.
+   */
+  public static int[] samplePatch(@NotNull InputStream in,
+                                  @NotNull Locator locator,
+                                  int radius) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(in);
+    buffered.mark(PngPatchDecoder.HEADER_LENGTH);
+    Optional<int[]> png = PngPatchDecoder.samplePatch(buffered, locator, radius);
+    if (png.isPresent()) {
+      return png.get();
+    }
+    buffered.reset();
+    try (ImageInputStream imageStream = new MemoryCacheImageInputStream(buffered)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported image format!");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageStream, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        Point center = locator.locate(width, height);
+        Rectangle patch = new Rectangle(center.x - radius, center.y - radius,
+            radius * 2 + 1, radius * 2 + 1)
+            .intersection(new Rectangle(0, 0, width, height));
+        if (patch.isEmpty()) {
+          throw new IOException("Sampled position is outside of the image!");
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(patch);
+        return reader.read(0, param)
+            .getRGB(0, 0, patch.width, patch.height, null, 0, patch.width);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Locates a position in an image from its dimensions.
+   */
+  @FunctionalInterface
+  public interface Locator {
+    Point locate(int width, int height);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.base.Splitter;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+import lombok.Getter;
+import lombok.Setter;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Attachment-bearing message as stored in {@link MessageIndex}.
+ * Holds only the data commands need, so the original {@link Message} can be discarded.
+ */
+@Getter
+public class IndexedMessage {
+  private static final Splitter splitter = Splitter.on('|').limit(7);
+  private static final String CDN_HOST = "https://cdn.discordapp.com/";
+  private static final String MEDIA_PROXY_HOST = "https://media.discordapp.net/";
+  private final long guildId;
+  private final long channelId;
+  private final long messageId;
+  private final long authorId;
+  private final long attachmentId;
+  private final String attachmentUrl;
+  /**
+   * Dimensions of the attachment image, 0 if unknown.
+   */
+  private final int width;
+  private final int height;
+  private final boolean ignored;
+  @Nullable
+  private final RarityTypes forcedRarity;
+  /**
+   * Rarity classified from the attachment, null until classified.
+   */
+  @Setter
+  @Nullable
+  private volatile RarityTypes rarity;
+
+  IndexedMessage(final long guildId,
+                 final long channelId,
+                 final long messageId,
+                 final long authorId,
+                 final long attachmentId,
+                 @NotNull final String attachmentUrl,
+                 final int width,
+                 final int height,
+                 final boolean ignored,
+                 @Nullable final RarityTypes forcedRarity) {
+    this.guildId = guildId;
+    this.channelId = channelId;
+    this.messageId = messageId;
+    this.authorId = authorId;
+    this.attachmentId = attachmentId;
+    this.attachmentUrl = attachmentUrl;
+    this.width = width;
+    this.height = height;
+    this.ignored = ignored;
+    this.forcedRarity = forcedRarity;
+  }
+
+  /**
+   * Creates an index entry from message.
+   *
+   * @param message message to index
+   * @return {@link Optional} of {@link IndexedMessage} or empty if message has no attachment.
+   */
+  public static Optional<IndexedMessage> from(@NotNull Message message) {
+    if (message.getAttachments().isEmpty()) {
+      return Optional.empty();
+    }
+    Message.Attachment attachment = message.getAttachments().get(0);
+    String content = message.getContentRaw();
+    RarityTypes forcedRarity = null;
+    if (!content.isEmpty() && content.startsWith("*")) {
+      forcedRarity = RarityTypes.parse(content.substring(1)).orElse(null);
+    }
+    return Optional.of(new IndexedMessage(
+        message.getGuild().getIdLong(),
+        message.getTextChannel().getIdLong(),
+        message.getIdLong(),
+        message.getAuthor().getIdLong(),
+        attachment.getIdLong(),
+        attachment.getUrl(),
+        attachment.getWidth(),
+        attachment.getHeight(),
+        content.contains("*ignored"),
+        forcedRarity));
+  }
+
+  /**
+   * Parses an entry previously created by {@link IndexedMessage#serialize()}.
+   *
+   * @param guildId ID of the guild the entry belongs to
+   * @param channelId ID of the channel the entry belongs to
+   * @param messageId ID of the message the entry belongs to
+   * @param value serialized entry
+   * @return {@link Optional} of {@link IndexedMessage} or empty if value is malformed.
+   */
+  public static Optional<IndexedMessage> deserialize(long guildId,
+                                                     long channelId,
+                                                     @NotNull String messageId,
+                                                     @NotNull String value) {
+    List<String> parts = splitter.splitToList(value);
+    if (parts.size() != 5 && parts.size() != 7) {
+      return Optional.empty();
+    }
+    // entries without dimensions have URL as the fifth part
+    boolean hasDimensions = parts.size() == 7;
+    try {
+      return Optional.of(new IndexedMessage(
+          guildId,
+          channelId,
+          Long.parseLong(messageId),
+          Long.parseLong(parts.get(0)),
+          Long.parseLong(parts.get(1)),
+          parts.get(hasDimensions ? 6 : 4),
+          hasDimensions ? Integer.parseInt(parts.get(4)) : 0,
+          hasDimensions ? Integer.parseInt(parts.get(5)) : 0,
+          parts.get(2).equals("1"),
+          RarityTypes.parse(parts.get(3)).orElse(null)));
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Serializes the entry (without guild, channel and message ID) for persistence.
+   *
+   * @return {@link String} in format authorId|attachmentId|ignored|forcedRarity|width|height|url
+   */
+  public String serialize() {
+    return authorId + "|" + attachmentId + "|" + (ignored ? "1" : "0") + "|"
+        + (forcedRarity == null ? "" : forcedRarity.toString()) + "|" + width + "|" + height
+        + "|" + attachmentUrl;
+  }
+
+  /**
+   * Creates URL of the attachment downscaled by Discord media proxy.
+   *
+   * @param maxWidth width of the thumbnail, aspect ratio of the image is kept
+   * @return {@link Optional} of the URL or empty if the attachment isn't larger than maxWidth,
+   *     its dimensions are unknown or it's not hosted on Discord CDN.
+   */
+  public Optional<String> getThumbnailUrl(int maxWidth) {
+    if (width <= maxWidth || height <= 0 || !attachmentUrl.startsWith(CDN_HOST)) {
+      return Optional.empty();
+    }
+    int thumbnailHeight = Math.max(1, (int) Math.round((double) height * maxWidth / width));
+    return Optional.of(MEDIA_PROXY_HOST + attachmentUrl.substring(CDN_HOST.length())
+        + (attachmentUrl.indexOf('?') < 0 ? "?" : "&")
+        + "width=" + maxWidth + "&height=" + thumbnailHeight);
+  }
+
+  /**
+   * Returns rarity which is known without any I/O, either forced or classified.
+   *
+   * @return {@link Optional} containing {@link RarityTypes} or empty if it has to be loaded.
+   */
+  public Optional<RarityTypes> getKnownRarity() {
+    return Optional.ofNullable(forcedRarity != null ? forcedRarity : rarity);
+  }
+
+  public OffsetDateTime getTimeCreated() {
+    return TimeUtil.getTimeCreated(messageId);
+  }
+}
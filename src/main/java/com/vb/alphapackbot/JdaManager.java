@@ -36,10 +36,13 @@ public class JdaManager implements QuarkusApplication {
   JDA mainJda;
 
   final MessageHandler messageHandler;
+  final MessageIndexListener messageIndexListener;
 
   @Inject
-  JdaManager(final MessageHandler messageHandler) {
+  JdaManager(final MessageHandler messageHandler,
+             final MessageIndexListener messageIndexListener) {
     this.messageHandler = messageHandler;
+    this.messageIndexListener = messageIndexListener;
   }
 
   /**
@@ -53,7 +56,7 @@ public class JdaManager implements QuarkusApplication {
   public JDA initialize(final String token) throws LoginException, InterruptedException {
     final JDABuilder jda = JDABuilder
         .createLight(token)
-        .addEventListeners(messageHandler);
+        .addEventListeners(messageHandler, messageIndexListener);
     try {
       final JDA mainJda = jda.build();
       mainJda.awaitReady();
@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies with fixed, roughly exponential bucket bounds.
+ * Percentiles are reported as upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+  private static final long[] boundsMillis =
+      {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, Long.MAX_VALUE};
+  private final LongAdder[] buckets = new LongAdder[boundsMillis.length];
+
+  public LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a single latency.
+   *
+   * @param nanos latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    for (int i = 0; i < boundsMillis.length; i++) {
+      if (millis <= boundsMillis[i]) {
+        buckets[i].increment();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns count of recorded latencies.
+   *
+   * @return count of recorded latencies
+   */
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  /**
+   * Estimates percentile of recorded latencies.
+   *
+   * @param percentile percentile between 0 and 100
+   * @return upper bound of the bucket containing the percentile in milliseconds,
+   *     0 if nothing was recorded and {@link Long#MAX_VALUE} if it exceeds all bounds.
+   */
+  public long getPercentileMillis(double percentile) {
+    long[] counts = new long[buckets.length];
+    long total = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return boundsMillis[i];
+      }
+    }
+    return boundsMillis[boundsMillis.length - 1];
+  }
+
+  @Override
+  public String toString() {
+    return "count " + getCount()
+        + ", p50 " + formatBound(getPercentileMillis(50))
+        + ", p95 " + formatBound(getPercentileMillis(95))
+        + ", p99 " + formatBound(getPercentileMillis(99));
+  }
+
+  private static String formatBound(long millis) {
+    return millis == Long.MAX_VALUE ? "> " + boundsMillis[boundsMillis.length - 2] + " ms"
+        : "<= " + millis + " ms";
+  }
+}
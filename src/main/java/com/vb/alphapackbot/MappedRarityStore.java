@@ -0,0 +1,421 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Rarities of attachments in a memory-mapped file holding an open-addressing hash table
+ * of attachment snowflakes to rarity codes, 9 bytes per slot.
+ * <p>File starts with a header holding capacity, size and a clean flag, protected by checksum.
+ * Slots follow as an array of keys (0 for empty slot) and an array of values (rarity code + 1,
+ * 0 while not written yet). Slots are probed linearly.</p>
+ * <p>Reads are lock-free: a key is claimed by compare-and-set and read with acquire semantics,
+ * so a reader sees either no entry or the whole of it. Writes lock one of the stripes by key,
+ * so writes of the same attachment are ordered. Once the load exceeds
+ * {@value #MAX_LOAD_PERCENT} %, the table is rehashed into a file of double capacity which
+ * atomically replaces the current one, readers keep reading the old mapping meanwhile.</p>
+ * <p>Header is marked unclean while the store is open. Entries are written to the mapping and
+ * survive a crash of the process; if the store wasn't closed or its header is torn, size is
+ * recounted on open.</p>
+ */
+public class MappedRarityStore implements Closeable {
+  private static final Logger log = Logger.getLogger(MappedRarityStore.class);
+  private static final int MAGIC = 0x41505253;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 64;
+  private static final int CHECKSUM_OFFSET = HEADER_LENGTH - 4;
+  private static final int SLOT_LENGTH = 9;
+  private static final int MAX_LOAD_PERCENT = 70;
+  /**
+   * Keys of the largest table, 1 GiB, still fit a single mapping,
+   * which is limited to {@link Integer#MAX_VALUE} bytes.
+   */
+  private static final int MAX_CAPACITY = 1 << 27;
+  private static final int STRIPES = 64;
+  private static final VarHandle keyHandle =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private final Path path;
+  private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+  private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+  private final AtomicLong size = new AtomicLong();
+  private volatile Table table;
+  /**
+   * Cleared once resizing fails, so it isn't attempted again on every insert.
+   */
+  private volatile boolean growable = true;
+
+  /**
+   * Opens the store, creating it if it doesn't exist.
+   *
+   * @param path path of the file
+   * @param initialCapacity number of slots of a new store, rounded up to power of two
+   * @throws IOException if the file can't be mapped or isn't a rarity store
+   */
+  public MappedRarityStore(@NotNull Path path, int initialCapacity) throws IOException {
+    this.path = path;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    Files.deleteIfExists(resizePath());
+    if (Files.exists(path) && Files.size(path) > 0) {
+      table = Table.open(path);
+      long recordedSize = table.readSize();
+      if (recordedSize < 0) {
+        recordedSize = table.count();
+        log.warnf("Rarity store %s wasn't closed, recounted %d entries.", path, recordedSize);
+      }
+      size.set(recordedSize);
+    } else {
+      int capacity = Math.min(Math.max(16, initialCapacity), MAX_CAPACITY);
+      table = Table.create(path, Integer.highestOneBit(capacity - 1) << 1);
+    }
+    table.writeHeader(size.get(), false);
+  }
+
+  /**
+   * Looks up rarity of an attachment without locking.
+   *
+   * @param attachmentId snowflake of the attachment
+   * @return {@link Optional} containing {@link RarityTypes} or empty if not stored.
+   */
+  public Optional<RarityTypes> get(long attachmentId) {
+    Table current = table;
+    int mask = current.capacity - 1;
+    int slot = current.slotOf(attachmentId);
+    for (int probes = 0; probes < current.capacity; probes++) {
+      long key = current.getKey(slot);
+      if (key == attachmentId) {
+        byte value = current.values.get(slot);
+        return value == 0 ? Optional.empty() : RarityTypes.fromCode((byte) (value - 1));
+      }
+      if (key == 0) {
+        return Optional.empty();
+      }
+      slot = (slot + 1) & mask;
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Stores rarity of an attachment, growing the table if needed.
+   *
+   * @param attachmentId snowflake of the attachment, not 0
+   * @param rarity rarity of the attachment
+   * @return false if the table is full and can't grow any more
+   */
+  public boolean put(long attachmentId, @NotNull RarityTypes rarity) {
+    if (attachmentId == 0) {
+      throw new IllegalArgumentException("Attachment ID 0 can't be stored!");
+    }
+    boolean grow;
+    ReentrantLock stripe = stripes[(int) (mix(attachmentId) >>> 32) & (STRIPES - 1)];
+    resizeLock.readLock().lock();
+    stripe.lock();
+    try {
+      Table current = table;
+      int mask = current.capacity - 1;
+      int slot = current.slotOf(attachmentId);
+      int probes = 0;
+      while (true) {
+        if (probes == current.capacity) {
+          log.errorf("Rarity store %s is full!", path);
+          return false;
+        }
+        long key = current.getKey(slot);
+        if (key == attachmentId) {
+          current.values.put(slot, (byte) (rarity.getCode() + 1));
+          return true;
+        }
+        if (key == 0) {
+          if (!current.claim(slot, attachmentId)) {
+            // claimed by another attachment meanwhile, look at the slot again
+            continue;
+          }
+          current.values.put(slot, (byte) (rarity.getCode() + 1));
+          grow = size.incrementAndGet() * 100 > (long) current.capacity * MAX_LOAD_PERCENT;
+          break;
+        }
+        slot = (slot + 1) & mask;
+        probes++;
+      }
+    } finally {
+      stripe.unlock();
+      resizeLock.readLock().unlock();
+    }
+    if (grow && growable) {
+      resize();
+    }
+    return true;
+  }
+
+  public long size() {
+    return size.get();
+  }
+
+  public int capacity() {
+    return table.capacity;
+  }
+
+  /**
+   * Rehashes all entries into a table of double capacity. Writers wait, readers don't.
+   * If resizing fails, the current table is kept and no more resizing is attempted
+   * until the store is reopened.
+   */
+  private void resize() {
+    Path resizePath = resizePath();
+    Table current;
+    Table resized = null;
+    resizeLock.writeLock().lock();
+    try {
+      current = table;
+      if (size.get() * 100 <= (long) current.capacity * MAX_LOAD_PERCENT) {
+        return;
+      }
+      if (current.capacity == MAX_CAPACITY) {
+        log.warnf("Rarity store %s reached maximum capacity of %d.", path, MAX_CAPACITY);
+        growable = false;
+        return;
+      }
+      resized = Table.create(resizePath, current.capacity * 2);
+      for (int slot = 0; slot < current.capacity; slot++) {
+        long key = current.getKey(slot);
+        byte value = current.values.get(slot);
+        if (key != 0 && value != 0) {
+          resized.insert(key, value);
+        }
+      }
+      resized.writeHeader(size.get(), false);
+      resized.force();
+      Files.move(resizePath, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      table = resized;
+      log.infof("Resized rarity store %s to %d slots.", path, resized.capacity);
+    } catch (IOException | RuntimeException e) {
+      log.error("Unable to resize rarity store " + path + ", it won't grow any more!", e);
+      growable = false;
+      discard(resized, resizePath);
+      return;
+    } finally {
+      resizeLock.writeLock().unlock();
+    }
+    // readers may still hold the old mapping, which stays valid after its channel is closed
+    try {
+      current.channel.close();
+    } catch (IOException e) {
+      log.warn("Unable to close replaced rarity store " + path + "!", e);
+    }
+  }
+
+  /**
+   * Closes and deletes a table which failed to replace the current one.
+   */
+  private static void discard(Table resized, Path resizePath) {
+    try {
+      if (resized != null) {
+        resized.channel.close();
+      }
+      Files.deleteIfExists(resizePath);
+    } catch (IOException e) {
+      log.warn("Unable to delete " + resizePath + "!", e);
+    }
+  }
+
+  private Path resizePath() {
+    return path.resolveSibling(path.getFileName() + ".resize");
+  }
+
+  /**
+   * Writes all entries to the file and marks it clean.
+   */
+  @Override
+  public void close() throws IOException {
+    resizeLock.writeLock().lock();
+    try {
+      table.force();
+      table.writeHeader(size.get(), true);
+      table.header.force();
+      table.channel.close();
+    } finally {
+      resizeLock.writeLock().unlock();
+    }
+  }
+
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    return key ^ (key >>> 33);
+  }
+
+  /**
+   * Mapping of a single file.
+   */
+  private static class Table {
+    final FileChannel channel;
+    final int capacity;
+    final MappedByteBuffer header;
+    final MappedByteBuffer keys;
+    final MappedByteBuffer values;
+
+    private Table(FileChannel channel, int capacity) throws IOException {
+      this.channel = channel;
+      this.capacity = capacity;
+      this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+      this.keys = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH, capacity * 8L);
+      keys.order(ByteOrder.LITTLE_ENDIAN);
+      this.values = channel.map(FileChannel.MapMode.READ_WRITE,
+          HEADER_LENGTH + capacity * 8L, capacity);
+    }
+
+    static Table create(Path path, int capacity) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      // extending the file fills it with zeros, i.e. empty slots
+      try {
+        channel.write(ByteBuffer.allocate(1),
+            HEADER_LENGTH + (long) capacity * SLOT_LENGTH - 1);
+        return new Table(channel, capacity);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Maps an existing file. Capacity is taken from the header, or from length of the file
+     * if the header is torn.
+     */
+    static Table open(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      long slots = (channel.size() - HEADER_LENGTH) / SLOT_LENGTH;
+      if (channel.size() != HEADER_LENGTH + slots * SLOT_LENGTH
+          || Long.bitCount(slots) != 1 || slots > MAX_CAPACITY) {
+        channel.close();
+        throw new IOException("File " + path + " is not a rarity store!");
+      }
+      Table table;
+      try {
+        table = new Table(channel, (int) slots);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+      if (table.isHeaderValid()
+          && (table.header.getInt(0) != MAGIC || table.header.getInt(4) != FORMAT_VERSION)) {
+        channel.close();
+        throw new IOException("File " + path + " is not a rarity store of known version!");
+      }
+      return table;
+    }
+
+    /**
+     * Returns size recorded in the header.
+     *
+     * @return size or -1 if the store wasn't closed cleanly or the header is torn
+     */
+    long readSize() {
+      if (!isHeaderValid() || header.get(24) != 1) {
+        return -1;
+      }
+      return header.getLong(16);
+    }
+
+    void writeHeader(long size, boolean clean) {
+      header.putInt(0, MAGIC);
+      header.putInt(4, FORMAT_VERSION);
+      header.putLong(8, capacity);
+      header.putLong(16, size);
+      header.put(24, (byte) (clean ? 1 : 0));
+      header.putInt(CHECKSUM_OFFSET, checksum());
+    }
+
+    private boolean isHeaderValid() {
+      return header.getInt(CHECKSUM_OFFSET) == checksum() && header.getLong(8) == capacity;
+    }
+
+    private int checksum() {
+      byte[] bytes = new byte[CHECKSUM_OFFSET];
+      for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+        bytes[i] = header.get(i);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      return (int) crc.getValue();
+    }
+
+    int slotOf(long key) {
+      return (int) mix(key) & (capacity - 1);
+    }
+
+    long getKey(int slot) {
+      return (long) keyHandle.getAcquire(keys, slot * 8);
+    }
+
+    boolean claim(int slot, long key) {
+      return keyHandle.compareAndSet(keys, slot * 8, 0L, key);
+    }
+
+    /**
+     * Inserts entry into a table not visible to other threads yet.
+     */
+    void insert(long key, byte value) {
+      int slot = slotOf(key);
+      while (keys.getLong(slot * 8) != 0) {
+        slot = (slot + 1) & (capacity - 1);
+      }
+      keys.putLong(slot * 8, key);
+      values.put(slot, value);
+    }
+
+    long count() {
+      long count = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        if (keys.getLong(slot * 8) != 0 && values.get(slot) != 0) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    void force() {
+      keys.force();
+      values.force();
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache backend keeping everything in process, lost on restart.
+ * Rarities, classifications, counted messages and low confidence marks are bounded.
+ * Rarities and classifications are evicted least recently used first. Counters are evicted
+ * by whole users, least recently used first, and recounted on next use. The oldest low
+ * confidence marks are evicted, so they are just not reprocessed.
+ * <p>Message indexes are not stored, as {@link MessageIndex} holds them in process anyway,
+ * unless a subclass persists them.</p>
+ * <p>All changes go through the protected primitives, so a subclass can persist them.</p>
+ */
+public class MemoryCacheBackend implements CacheBackend {
+  protected final com.google.common.cache.Cache<Long, RarityTypes> rarities;
+  protected final com.google.common.cache.Cache<HashCode, Classification> classifications;
+  /**
+   * Rarity of every counted message per aggregate key, counters are derived from it.
+   * Iterated least recently used first.
+   */
+  protected final Map<String, Map<Long, RarityTypes>> aggregates =
+      new LinkedHashMap<>(16, 0.75f, true);
+  protected final Map<String, Map<String, String>> indexes = new HashMap<>();
+  protected final Map<String, String> indexHeads = new HashMap<>();
+  protected final Map<Long, String> lowConfidence;
+  private final long maxSize;
+  private final boolean storesIndexes;
+  private long contributionCount;
+
+  /**
+   * Creates empty backend, which doesn't store message indexes.
+   *
+   * @param maxSize maximum number of rarities, of classifications, of counted messages
+   *     and of low confidence marks held
+   */
+  public MemoryCacheBackend(long maxSize) {
+    this(maxSize, false);
+  }
+
+  /**
+   * Creates empty backend.
+   *
+   * @param maxSize maximum number of rarities, of classifications, of counted messages
+   *     and of low confidence marks held
+   * @param storesIndexes whether message indexes are stored, for subclasses persisting them
+   */
+  protected MemoryCacheBackend(long maxSize, boolean storesIndexes) {
+    this.maxSize = maxSize;
+    this.storesIndexes = storesIndexes;
+    this.rarities = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    this.classifications = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    this.lowConfidence = new LinkedHashMap<>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  @Override
+  public String getName() {
+    return "memory";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public Map<Long, RarityTypes> getRarities(@NotNull Collection<Long> attachmentIds) {
+    return new HashMap<>(rarities.getAllPresent(attachmentIds));
+  }
+
+  @Override
+  public synchronized void saveRarities(@NotNull Map<Long, RarityTypes> values) {
+    values.forEach(this::putRarity);
+    commit();
+  }
+
+  @Override
+  public Optional<Classification> getClassification(@NotNull HashCode contentHash) {
+    return Optional.ofNullable(classifications.getIfPresent(contentHash));
+  }
+
+  @Override
+  public synchronized void saveClassification(@NotNull HashCode contentHash,
+                                              @NotNull Classification classification) {
+    putClassification(contentHash, classification);
+    commit();
+  }
+
+  @Override
+  public synchronized Map<RarityTypes, Integer> getAggregate(@NotNull String guildId,
+                                                             @NotNull String channelId,
+                                                             @NotNull String authorId) {
+    Map<RarityTypes, Integer> aggregate = new EnumMap<>(RarityTypes.class);
+    Map<Long, RarityTypes> contributions =
+        aggregates.get(aggregateKey(guildId, channelId, authorId));
+    if (contributions != null) {
+      for (RarityTypes rarity : contributions.values()) {
+        aggregate.merge(rarity, 1, Integer::sum);
+      }
+    }
+    return aggregate;
+  }
+
+  @Override
+  public synchronized void replaceAggregate(@NotNull String guildId,
+                                            @NotNull String channelId,
+                                            @NotNull String authorId,
+                                            @NotNull Map<Long, RarityTypes> contributions) {
+    String key = aggregateKey(guildId, channelId, authorId);
+    resetAggregate(key);
+    contributions.forEach((messageId, rarity) -> putContribution(key, messageId, rarity));
+    commit();
+  }
+
+  @Override
+  public synchronized void contribute(@NotNull String guildId,
+                                      @NotNull String channelId,
+                                      @NotNull List<Contribution> contributions) {
+    for (Contribution contribution : contributions) {
+      String key = aggregateKey(guildId, channelId, Long.toString(contribution.getAuthorId()));
+      Map<Long, RarityTypes> current = aggregates.get(key);
+      RarityTypes old = current == null ? null : current.get(contribution.getMessageId());
+      if (old != contribution.getRarity()) {
+        putContribution(key, contribution.getMessageId(), contribution.getRarity());
+      }
+    }
+    commit();
+  }
+
+  @Override
+  public synchronized Map<String, String> getIndex(@NotNull String channelId) {
+    if (!storesIndexes) {
+      return Map.of();
+    }
+    return new HashMap<>(indexes.getOrDefault(channelId, Map.of()));
+  }
+
+  @Override
+  public synchronized Optional<String> getIndexHead(@NotNull String channelId) {
+    if (!storesIndexes) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(indexHeads.get(channelId));
+  }
+
+  @Override
+  public synchronized void saveIndex(@NotNull String channelId,
+                                     @NotNull Map<String, String> entries,
+                                     @NotNull String headId) {
+    if (!storesIndexes) {
+      return;
+    }
+    entries.forEach((messageId, value) -> putIndexEntry(channelId, messageId, value));
+    putIndexHead(channelId, headId);
+    commit();
+  }
+
+  @Override
+  public synchronized void removeIndexEntry(@NotNull String channelId,
+                                            @NotNull String messageId) {
+    if (!storesIndexes) {
+      return;
+    }
+    putIndexEntry(channelId, messageId, null);
+    commit();
+  }
+
+  @Override
+  public synchronized void saveLowConfidence(long attachmentId, @NotNull String location) {
+    putLowConfidence(attachmentId, location);
+    commit();
+  }
+
+  @Override
+  public synchronized Collection<String> getLowConfidence() {
+    return new ArrayList<>(lowConfidence.values());
+  }
+
+  @Override
+  public synchronized void removeLowConfidence(long attachmentId) {
+    putLowConfidence(attachmentId, null);
+    commit();
+  }
+
+  protected void putRarity(long attachmentId, @NotNull RarityTypes rarity) {
+    rarities.put(attachmentId, rarity);
+  }
+
+  protected void putClassification(@NotNull HashCode contentHash,
+                                   @NotNull Classification classification) {
+    classifications.put(contentHash, classification);
+  }
+
+  protected void resetAggregate(@NotNull String key) {
+    Map<Long, RarityTypes> contributions = aggregates.remove(key);
+    if (contributions != null) {
+      contributionCount -= contributions.size();
+    }
+  }
+
+  /**
+   * Sets rarity a message is counted as.
+   *
+   * @param rarity rarity of the message, null withdraws it
+   */
+  protected void putContribution(@NotNull String key, long messageId,
+                                 @Nullable RarityTypes rarity) {
+    if (rarity == null) {
+      Map<Long, RarityTypes> contributions = aggregates.get(key);
+      if (contributions != null && contributions.remove(messageId) != null) {
+        contributionCount--;
+      }
+    } else {
+      if (aggregates.computeIfAbsent(key, k -> new HashMap<>()).put(messageId, rarity) == null) {
+        contributionCount++;
+      }
+      evictAggregates(key);
+    }
+  }
+
+  /**
+   * Evicts least recently used counters, except the one being changed, while more messages
+   * are counted than allowed.
+   */
+  private void evictAggregates(@NotNull String changedKey) {
+    Iterator<Map.Entry<String, Map<Long, RarityTypes>>> eldest = aggregates.entrySet().iterator();
+    while (contributionCount > maxSize && eldest.hasNext()) {
+      Map.Entry<String, Map<Long, RarityTypes>> entry = eldest.next();
+      if (!entry.getKey().equals(changedKey)) {
+        contributionCount -= entry.getValue().size();
+        eldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Sets entry of a message in index of a channel.
+   *
+   * @param value serialized entry, null removes it
+   */
+  protected void putIndexEntry(@NotNull String channelId, @NotNull String messageId,
+                               @Nullable String value) {
+    if (value == null) {
+      Map<String, String> index = indexes.get(channelId);
+      if (index != null) {
+        index.remove(messageId);
+      }
+    } else {
+      indexes.computeIfAbsent(channelId, k -> new HashMap<>()).put(messageId, value);
+    }
+  }
+
+  protected void putIndexHead(@NotNull String channelId, @NotNull String headId) {
+    indexHeads.put(channelId, headId);
+  }
+
+  /**
+   * Sets low confidence mark of an attachment.
+   *
+   * @param location location of the message, null removes the mark
+   */
+  protected void putLowConfidence(long attachmentId, @Nullable String location) {
+    if (location == null) {
+      lowConfidence.remove(attachmentId);
+    } else {
+      lowConfidence.put(attachmentId, location);
+    }
+  }
+
+  /**
+   * Called after each change is applied, holding the lock of the backend.
+   */
+  protected void commit() {
+  }
+
+  static String aggregateKey(String guildId, String channelId, String authorId) {
+    return guildId + ":" + channelId + ":" + authorId;
+  }
+}
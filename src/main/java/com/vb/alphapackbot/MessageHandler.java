@@ -17,15 +17,15 @@
 package com.vb.alphapackbot;
 
 import com.google.common.base.Splitter;
+import com.vb.alphapackbot.commands.AbstractCommand;
 import com.vb.alphapackbot.commands.CountCommand;
 import com.vb.alphapackbot.commands.OccurrenceCommand;
 import com.vb.alphapackbot.commands.StatusCommand;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import net.dv8tion.jda.api.entities.Member;
@@ -46,19 +46,32 @@ public class MessageHandler extends ListenerAdapter {
       + "status - Prints bot status";
   private static final String invalidRarity = "\n Invalid rarity, acceptable rarities: "
       + "Common, Uncommon, Rare, Epic, Legendary, Unknown";
+  private static final String busyMessage = "\nToo many commands are being processed, "
+      + "try again later.";
   private static final Properties properties = Properties.getInstance();
   final Telemetry telemetry;
+  final RarityClassifier classifier;
+  final ClassificationPipeline pipeline;
   final Cache cache;
   final TypingManager typingManager;
-  private final ExecutorService executor = Executors.newFixedThreadPool(5);
+  final MessageIndex messageIndex;
+  final CommandExecutor executor;
 
   @Inject
   MessageHandler(final Telemetry telemetry,
+                 final RarityClassifier classifier,
+                 final ClassificationPipeline pipeline,
                  final Cache cache,
-                 final TypingManager typingManager) {
+                 final TypingManager typingManager,
+                 final MessageIndex messageIndex,
+                 final CommandExecutor executor) {
     this.telemetry = telemetry;
+    this.classifier = classifier;
+    this.pipeline = pipeline;
     this.cache = cache;
     this.typingManager = typingManager;
+    this.messageIndex = messageIndex;
+    this.executor = executor;
   }
 
   @Override
@@ -73,19 +86,19 @@ public class MessageHandler extends ListenerAdapter {
         if (properties.isPrintingEnabled()) {
           event.getMessage()
               .reply(invalidCommandMessage)
-              .complete();
+              .queue();
         }
         if (properties.isPrintingEnabled()) {
-          event.getMessage().addReaction("U+1F44E").complete();
+          event.getMessage().addReaction("U+1F44E").queue();
         }
         return;
       }
       telemetry.getCommandsReceived().increment();
       if (properties.isPrintingEnabled()) {
-        event.getMessage().addReaction("U+1F44D").complete();
+        event.getMessage().addReaction("U+1F44D").queue();
       }
       if (command.get() == Commands.COUNT) {
-        HashSet<User> mentions = new HashSet<>();
+        LinkedHashSet<User> mentions = new LinkedHashSet<>();
         if (!event.getMessage().getMentionedRoles().isEmpty()) {
           event.getGuild()
               .getMembersWithRoles(event.getMessage().getMentionedRoles())
@@ -99,11 +112,8 @@ public class MessageHandler extends ListenerAdapter {
         if (mentions.isEmpty()) {
           mentions.add(event.getAuthor());
         }
-        for (int i = 0; i < mentions.size(); i++) {
-          CountCommand countCommand = new CountCommand(event, command.get(), cache, typingManager);
-          properties.getProcessingCounter().increment();
-          executor.execute(countCommand);
-        }
+        submit(event, new CountCommand(event, command.get(), mentions, classifier, pipeline,
+            cache, typingManager, messageIndex));
       } else if (command.get() == Commands.STATUS) {
         StatusCommand statusCommand = new StatusCommand(event, properties, telemetry);
         statusCommand.sendStatus();
@@ -113,14 +123,31 @@ public class MessageHandler extends ListenerAdapter {
           if (properties.isPrintingEnabled()) {
             event.getMessage()
                 .reply(invalidRarity)
-                .complete();
+                .queue();
           }
           return;
         }
         OccurrenceCommand occurrenceCommand =
-            new OccurrenceCommand(event, command.get(), rarity.get(), cache, typingManager);
-        properties.getProcessingCounter().increment();
-        executor.execute(occurrenceCommand);
+            new OccurrenceCommand(event, command.get(), rarity.get(), classifier, typingManager,
+                messageIndex);
+        submit(event, occurrenceCommand);
+      }
+    }
+  }
+
+  /**
+   * Submits command for execution, replies to the user if it was rejected.
+   */
+  private void submit(@NotNull GuildMessageReceivedEvent event, @NotNull AbstractCommand command) {
+    properties.getProcessingCounter().increment();
+    try {
+      executor.execute(command);
+    } catch (RejectedExecutionException e) {
+      properties.getProcessingCounter().decrement();
+      if (properties.isPrintingEnabled()) {
+        event.getMessage()
+            .reply(busyMessage)
+            .queue();
       }
     }
   }
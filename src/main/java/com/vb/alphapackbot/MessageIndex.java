@@ -0,0 +1,595 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.quarkus.runtime.ShutdownEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.TextChannel;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistent, incrementally updated index of attachment-bearing messages per channel.
+ * Channels are tracked from gateway events, their persisted entries are loaded first.
+ * Whole history of a channel is walked only once, while it has no index. Afterwards only
+ * messages newer than the head of the index are fetched, before first use and after
+ * a reconnect which may have missed gateway events. Otherwise the index is kept live
+ * from gateway events without any history requests.
+ * <p>Messages deleted or edited while no events were received are reconciled in background,
+ * off the path of commands. Every {@code reconcile-interval-minutes} the least recently
+ * reconciled channel is checked against at most {@code reconcile-pages} newest pages
+ * of its history, requested through {@link HistoryFetcher}.</p>
+ * <p>History is walked without holding the lock of the channel. The lock is a
+ * {@link ReentrantLock} rather than {@code synchronized}, since it is held during cache I/O
+ * and {@code synchronized} would pin virtual threads. Gateway events received meanwhile
+ * are buffered and applied once the walked history is merged.</p>
+ */
+@Singleton
+public class MessageIndex {
+  private static final Logger log = Logger.getLogger(MessageIndex.class);
+  private static final int MAX_RETRIEVE_SIZE = 100;
+  private final ConcurrentHashMap<Long, ChannelIndex> channels = new ConcurrentHashMap<>();
+  private final SingleFlight<Long, Void> updates = new SingleFlight<>();
+  private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("index-reconcile").setDaemon(true).build());
+  private long reconciliations;
+  final Cache cache;
+  final HistoryFetcher historyFetcher;
+  private final int reconcilePages;
+
+  @Inject
+  MessageIndex(
+      final Cache cache,
+      final HistoryFetcher historyFetcher,
+      @ConfigProperty(name = "alphapackbot.index.reconcile-interval-minutes", defaultValue = "30")
+      final long reconcileIntervalMinutes,
+      @ConfigProperty(name = "alphapackbot.index.reconcile-pages", defaultValue = "5")
+      final int reconcilePages) {
+    this.cache = cache;
+    this.historyFetcher = historyFetcher;
+    this.reconcilePages = reconcilePages;
+    if (reconcileIntervalMinutes > 0 && reconcilePages > 0) {
+      reconciler.scheduleWithFixedDelay(this::reconcileNext, reconcileIntervalMinutes,
+          reconcileIntervalMinutes, TimeUnit.MINUTES);
+    }
+  }
+
+  void onStop(@Observes ShutdownEvent ev) {
+    reconciler.shutdownNow();
+  }
+
+  /**
+   * Brings index of the channel up to date and returns its entries.
+   * Live channels are returned without any history requests.
+   *
+   * @param channel channel to get messages from
+   * @return List of indexed messages, newest first.
+   */
+  public @NotNull List<IndexedMessage> getMessages(@NotNull TextChannel channel) {
+    ChannelIndex index = track(channel);
+    if (!index.live) {
+      updates.execute(channel.getIdLong(), () -> {
+        update(channel, index);
+        return CompletableFuture.completedFuture(null);
+      }).join();
+    }
+    return new ArrayList<>(index.entries.descendingMap().values());
+  }
+
+  /**
+   * Adds, replaces or removes entry of a received or edited message.
+   * Does blocking I/O, shouldn't be called on the gateway thread.
+   *
+   * @param channel channel the message was sent to
+   * @param message received or edited message
+   * @return {@link CompletableFuture} of the change, completed once history of the channel
+   *     being walked is merged.
+   */
+  public CompletableFuture<Change> put(@NotNull TextChannel channel, @NotNull Message message) {
+    ChannelIndex index = track(channel);
+    return apply(index, () -> {
+      if (index.live) {
+        index.head = Math.max(index.head, message.getIdLong());
+      }
+      Optional<IndexedMessage> entry = IndexedMessage.from(message);
+      if (entry.isEmpty()) {
+        IndexedMessage removed = index.entries.remove(message.getIdLong());
+        if (removed != null) {
+          cache.removeIndexEntry(channel.getId(), message.getId());
+        }
+        return new Change(null, removed);
+      }
+      IndexedMessage previous = index.entries.put(message.getIdLong(), entry.get());
+      if (previous != null && previous.getAttachmentId() == entry.get().getAttachmentId()) {
+        entry.get().setRarity(previous.getRarity());
+      }
+      cache.saveIndex(channel.getId(),
+          Map.of(message.getId(), entry.get().serialize()),
+          Long.toString(index.head));
+      return new Change(entry.get(), null);
+    });
+  }
+
+  /**
+   * Removes entry of a deleted message.
+   *
+   * @param channel channel the message was deleted from
+   * @param messageId ID of the deleted message
+   * @return {@link CompletableFuture} of the removed entry or empty if there was none,
+   *     completed once history of the channel being walked is merged.
+   */
+  public CompletableFuture<Optional<IndexedMessage>> remove(@NotNull TextChannel channel,
+                                                            long messageId) {
+    ChannelIndex index = track(channel);
+    return apply(index, () -> {
+      IndexedMessage removed = index.entries.remove(messageId);
+      if (removed != null) {
+        cache.removeIndexEntry(channel.getId(), Long.toString(messageId));
+      }
+      return Optional.ofNullable(removed);
+    });
+  }
+
+  /**
+   * Checks whether the channel has an index, i.e. its history was walked at least once.
+   * Gateway events of other channels can be ignored, their whole history is walked on first use.
+   *
+   * @param channel channel to check
+   * @return true if the channel has an index or its history is being walked.
+   */
+  public boolean isIndexed(@NotNull TextChannel channel) {
+    ChannelIndex index = track(channel);
+    index.lock.lock();
+    try {
+      return index.head != 0 || index.live || index.walks > 0;
+    } finally {
+      index.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns index of the channel, loading its persisted entries if it isn't tracked yet.
+   */
+  private @NotNull ChannelIndex track(@NotNull TextChannel channel) {
+    ChannelIndex index = track(channel.getGuild().getIdLong(), channel.getIdLong());
+    index.channel = channel;
+    return index;
+  }
+
+  private @NotNull ChannelIndex track(long guildId, long channelId) {
+    ChannelIndex index = channels.computeIfAbsent(channelId, id -> new ChannelIndex());
+    if (!index.loaded) {
+      index.lock.lock();
+      try {
+        if (!index.loaded) {
+          load(guildId, channelId, index);
+        }
+      } finally {
+        index.lock.unlock();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Finds indexed message, loading persisted index of its channel if it isn't tracked yet.
+   *
+   * @param guildId ID of the guild the message was sent to
+   * @param channelId ID of the channel the message was sent to
+   * @param messageId ID of the message
+   * @return {@link Optional} of the entry, empty if the message isn't indexed, e.g. was deleted.
+   */
+  public Optional<IndexedMessage> find(long guildId, long channelId, long messageId) {
+    return Optional.ofNullable(track(guildId, channelId).entries.get(messageId));
+  }
+
+  /**
+   * Applies gateway event to the index of a channel right away,
+   * or buffers it while history of the channel is being walked.
+   */
+  private <T> CompletableFuture<T> apply(@NotNull ChannelIndex index, @NotNull Supplier<T> event) {
+    index.lock.lock();
+    try {
+      if (index.walks > 0) {
+        PendingEvent<T> pending = new PendingEvent<>(event);
+        index.pending.add(pending);
+        return pending.result;
+      }
+      return CompletableFuture.completedFuture(event.get());
+    } finally {
+      index.lock.unlock();
+    }
+  }
+
+  /**
+   * Picks random indexed messages with known image dimensions from all loaded channels.
+   *
+   * @param size maximum number of messages
+   * @return List of at most size indexed messages
+   */
+  public @NotNull List<IndexedMessage> sample(int size) {
+    List<IndexedMessage> candidates = new ArrayList<>();
+    for (ChannelIndex index : channels.values()) {
+      for (IndexedMessage entry : index.entries.values()) {
+        if (entry.getWidth() > 0 && entry.getHeight() > 0) {
+          candidates.add(entry);
+        }
+      }
+    }
+    Collections.shuffle(candidates);
+    return candidates.subList(0, Math.min(size, candidates.size()));
+  }
+
+  /**
+   * Marks all channels as possibly missing gateway events,
+   * so messages newer than their head are fetched before next use.
+   */
+  public void invalidate() {
+    channels.values().forEach(index -> index.live = false);
+  }
+
+  /**
+   * Loads persisted index of the channel from cache.
+   */
+  private void load(long guildId, long channelId, @NotNull ChannelIndex index) {
+    String id = Long.toString(channelId);
+    cache.getIndex(id).forEach((messageId, value) ->
+        IndexedMessage.deserialize(guildId, channelId, messageId, value)
+            .ifPresent(entry -> index.entries.put(entry.getMessageId(), entry)));
+    index.head = cache.getIndexHead(id).map(Long::parseLong).orElse(0L);
+    index.loaded = true;
+    log.infof("Loaded %d indexed messages of channel %s.", index.entries.size(), id);
+  }
+
+  /**
+   * Fetches messages newer than the head of the index, or whole history if the index is empty.
+   * Rate limited pages are retried by {@link HistoryFetcher},
+   * on other failures the index is left untouched, so no messages are skipped. The walk is ended
+   * however the update ends, so buffered events are never left behind.
+   * Gateway events buffered during the walk are applied after the retrieved messages,
+   * as they are newer.
+   */
+  private void update(@NotNull TextChannel channel, @NotNull ChannelIndex index) {
+    long head;
+    index.lock.lock();
+    try {
+      if (index.live) {
+        return;
+      }
+      head = index.head;
+      index.walks++;
+    } finally {
+      index.lock.unlock();
+    }
+    try {
+      List<Message> retrieved = head == 0
+          ? retrievePast(channel, Integer.MAX_VALUE)
+          : retrieveAfter(channel, head);
+      index.lock.lock();
+      try {
+        index.live = true;
+        merge(channel, index, retrieved);
+      } finally {
+        index.lock.unlock();
+      }
+    } catch (CompletionException e) {
+      log.warnf(e.getCause(), "Index of channel %s was not updated.", channel.getId());
+    } finally {
+      finishWalk(index);
+    }
+  }
+
+  /**
+   * Ends walk of the history. Once no walk of the channel remains, applies gateway events
+   * buffered meanwhile. Each event is applied on its own, failure of one fails only its future.
+   */
+  private void finishWalk(@NotNull ChannelIndex index) {
+    List<PendingEvent<?>> pending;
+    index.lock.lock();
+    try {
+      if (--index.walks > 0) {
+        return;
+      }
+      pending = new ArrayList<>(index.pending);
+      index.pending.clear();
+      pending.forEach(PendingEvent::apply);
+    } finally {
+      index.lock.unlock();
+    }
+    pending.forEach(PendingEvent::complete);
+  }
+
+  /**
+   * Adds retrieved messages to the index and advances its head.
+   */
+  private void merge(@NotNull TextChannel channel,
+                     @NotNull ChannelIndex index,
+                     @NotNull List<Message> retrieved) {
+    if (retrieved.isEmpty()) {
+      return;
+    }
+    Map<String, String> newEntries = new HashMap<>();
+    for (Message message : retrieved) {
+      IndexedMessage.from(message).ifPresent(entry -> {
+        index.entries.put(entry.getMessageId(), entry);
+        newEntries.put(message.getId(), entry.serialize());
+      });
+      index.head = Math.max(index.head, message.getIdLong());
+    }
+    cache.saveIndex(channel.getId(), newEntries, Long.toString(index.head));
+  }
+
+  /**
+   * Reconciles the least recently reconciled live channel, failures are only logged,
+   * the channel is tried again in a later pass.
+   */
+  private void reconcileNext() {
+    ChannelIndex next = null;
+    for (ChannelIndex index : channels.values()) {
+      if (index.live && (next == null || index.reconciledAt < next.reconciledAt)) {
+        next = index;
+      }
+    }
+    if (next == null) {
+      return;
+    }
+    next.reconciledAt = ++reconciliations;
+    try {
+      reconcile(next.channel, next);
+    } catch (RuntimeException e) {
+      log.warnf(e, "Index of channel %s was not reconciled.", next.channel.getId());
+    }
+  }
+
+  /**
+   * Walks newest history pages of the channel and reconciles indexed messages they cover.
+   * Gateway events received meanwhile are buffered, as for other walks.
+   */
+  private void reconcile(@NotNull TextChannel channel, @NotNull ChannelIndex index) {
+    long head;
+    index.lock.lock();
+    try {
+      head = index.head;
+      index.walks++;
+    } finally {
+      index.lock.unlock();
+    }
+    try {
+      List<Message> retrieved = retrievePast(channel, reconcilePages);
+      boolean wholeHistory = retrieved.size() < reconcilePages * MAX_RETRIEVE_SIZE;
+      long oldest = wholeHistory ? 0 : retrieved.get(retrieved.size() - 1).getIdLong();
+      index.lock.lock();
+      try {
+        reconcile(channel, index, retrieved, oldest, head);
+      } finally {
+        index.lock.unlock();
+      }
+    } finally {
+      finishWalk(index);
+    }
+  }
+
+  /**
+   * Reconciles entries of messages between oldest and newest with retrieved history.
+   * Entries of messages no longer present or without attachment are removed, entries of changed
+   * messages are replaced, both are withdrawn from rarity counters, so they are recounted on next
+   * use. Rarities of unchanged entries are kept.
+   *
+   * @param oldest ID of the oldest message covered by retrieved history, 0 if it's whole history
+   * @param newest ID of the newest message indexed before the history was retrieved
+   */
+  private void reconcile(@NotNull TextChannel channel,
+                         @NotNull ChannelIndex index,
+                         @NotNull List<Message> retrieved,
+                         long oldest,
+                         long newest) {
+    Map<Long, IndexedMessage> current = new HashMap<>();
+    for (Message message : retrieved) {
+      if (message.getIdLong() >= oldest && message.getIdLong() <= newest) {
+        IndexedMessage.from(message).ifPresent(entry -> current.put(entry.getMessageId(), entry));
+      }
+    }
+    Map<String, String> changedEntries = new HashMap<>();
+    List<IndexedMessage> withdrawn = new ArrayList<>();
+    for (IndexedMessage entry : current.values()) {
+      IndexedMessage previous = index.entries.put(entry.getMessageId(), entry);
+      if (previous != null
+          && previous.getAttachmentId() == entry.getAttachmentId()
+          && previous.isIgnored() == entry.isIgnored()
+          && previous.getForcedRarity() == entry.getForcedRarity()) {
+        entry.setRarity(previous.getRarity());
+        continue;
+      }
+      if (previous != null) {
+        withdrawn.add(previous);
+      }
+      changedEntries.put(Long.toString(entry.getMessageId()), entry.serialize());
+    }
+    Iterator<IndexedMessage> entries =
+        index.entries.subMap(oldest, true, newest, true).values().iterator();
+    while (entries.hasNext()) {
+      IndexedMessage entry = entries.next();
+      if (!current.containsKey(entry.getMessageId())) {
+        entries.remove();
+        cache.removeIndexEntry(channel.getId(), Long.toString(entry.getMessageId()));
+        withdrawn.add(entry);
+      }
+    }
+    if (!changedEntries.isEmpty()) {
+      cache.saveIndex(channel.getId(), changedEntries, Long.toString(index.head));
+    }
+    for (IndexedMessage entry : withdrawn) {
+      cache.removeFromAggregate(channel.getGuild().getId(), channel.getId(), entry);
+      cache.removeLowConfidence(entry.getAttachmentId());
+    }
+    if (!withdrawn.isEmpty() || !changedEntries.isEmpty()) {
+      log.infof("Reconciled %d indexed messages of channel %s.",
+          withdrawn.size() + changedEntries.size(), channel.getId());
+    }
+  }
+
+  /**
+   * Returns newest messages from specific channel.
+   *
+   * @param channel channel to get messages from
+   * @param maxPages maximum number of pages to retrieve
+   * @return ArrayList of messages, newest first
+   */
+  private @NotNull ArrayList<Message> retrievePast(@NotNull TextChannel channel, int maxPages) {
+    ArrayList<Message> messages = new ArrayList<>();
+    MessageHistory history = channel.getHistory();
+    for (int page = 0; page < maxPages; page++) {
+      List<Message> retrieved = historyFetcher.submit(channel.getIdLong(),
+          () -> history.retrievePast(MAX_RETRIEVE_SIZE).complete(false)).join();
+      messages.addAll(retrieved);
+      if (retrieved.size() < MAX_RETRIEVE_SIZE) {
+        break;
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Returns all messages from specific channel newer than specified message.
+   *
+   * @param channel channel to get messages from
+   * @param messageId ID of the newest already processed message
+   * @return ArrayList of messages
+   */
+  private @NotNull ArrayList<Message> retrieveAfter(@NotNull TextChannel channel, long messageId) {
+    ArrayList<Message> messages = new ArrayList<>();
+    MessageHistory history = historyFetcher.submit(channel.getIdLong(),
+        () -> channel.getHistoryAfter(messageId, MAX_RETRIEVE_SIZE).complete(false)).join();
+    List<Message> retrieved = history.getRetrievedHistory();
+    messages.addAll(retrieved);
+    while (retrieved.size() == MAX_RETRIEVE_SIZE) {
+      retrieved = historyFetcher.submit(channel.getIdLong(),
+          () -> history.retrieveFuture(MAX_RETRIEVE_SIZE).complete(false)).join();
+      messages.addAll(retrieved);
+    }
+    return messages;
+  }
+
+  private static class ChannelIndex {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Long, IndexedMessage> entries =
+        new ConcurrentSkipListMap<>();
+    private final List<PendingEvent<?>> pending = new ArrayList<>();
+    private volatile boolean loaded;
+    private volatile boolean live;
+    /**
+     * Channel of the index, as received in the latest event or command.
+     */
+    private volatile TextChannel channel;
+    /**
+     * Number of history walks in progress, gateway events are buffered while there is any.
+     */
+    private int walks;
+    private long head;
+    /**
+     * Sequence number of the latest reconciliation pass of the channel, 0 if never reconciled.
+     */
+    private long reconciledAt;
+  }
+
+  /**
+   * Change of the index caused by a received or edited message.
+   */
+  public static class Change {
+    @Nullable
+    private final IndexedMessage added;
+    @Nullable
+    private final IndexedMessage removed;
+
+    Change(@Nullable IndexedMessage added, @Nullable IndexedMessage removed) {
+      this.added = added;
+      this.removed = removed;
+    }
+
+    /**
+     * Returns new entry of the message.
+     *
+     * @return {@link Optional} of the entry, empty if the message has no attachment.
+     */
+    public Optional<IndexedMessage> getAdded() {
+      return Optional.ofNullable(added);
+    }
+
+    /**
+     * Returns entry removed because the message was edited to have no attachment.
+     *
+     * @return {@link Optional} of the removed entry or empty.
+     */
+    public Optional<IndexedMessage> getRemoved() {
+      return Optional.ofNullable(removed);
+    }
+  }
+
+  /**
+   * Gateway event received while history of its channel was being walked.
+   */
+  private static class PendingEvent<T> {
+    private final Supplier<T> event;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private T applied;
+    @Nullable
+    private RuntimeException failure;
+
+    PendingEvent(Supplier<T> event) {
+      this.event = event;
+    }
+
+    void apply() {
+      try {
+        applied = event.get();
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+
+    void complete() {
+      if (failure != null) {
+        result.completeExceptionally(failure);
+      } else {
+        result.complete(applied);
+      }
+    }
+  }
+}
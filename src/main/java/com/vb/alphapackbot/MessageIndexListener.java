@@ -0,0 +1,199 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.quarkus.runtime.ShutdownEvent;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps {@link MessageIndex} live from gateway events, classifies new screenshots eagerly
+ * and keeps rarity counters of users up to date. Only events of channels which already have
+ * an index are ingested, other channels are indexed and classified on first use.
+ * <p>Events are ingested on the ingestion executor, so the gateway thread isn't blocked by I/O
+ * of the index. Events of the same channel are ingested in order they were received.
+ * Screenshots are downloaded and classified on a separate executor, so a burst of attachments
+ * doesn't delay ingestion. When its queue is full, screenshots are left to be classified
+ * when counted.</p>
+ */
+@Singleton
+public class MessageIndexListener extends ListenerAdapter {
+  private static final Logger log = Logger.getLogger(MessageIndexListener.class);
+  private static final Properties properties = Properties.getInstance();
+  final MessageIndex messageIndex;
+  final RarityClassifier classifier;
+  final Cache cache;
+  private final ExecutorService ingestionExecutor;
+  private final ExecutorService classificationExecutor;
+  private final ConcurrentHashMap<Long, CompletableFuture<Void>> ingestion =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  MessageIndexListener(
+      final MessageIndex messageIndex,
+      final RarityClassifier classifier,
+      final Cache cache,
+      @ConfigProperty(name = "alphapackbot.index.ingestion-threads", defaultValue = "2")
+      final int ingestionThreads,
+      @ConfigProperty(name = "alphapackbot.index.classification-threads", defaultValue = "2")
+      final int classificationThreads,
+      @ConfigProperty(name = "alphapackbot.index.classification-queue-size", defaultValue = "1000")
+      final int classificationQueueSize) {
+    this.messageIndex = messageIndex;
+    this.classifier = classifier;
+    this.cache = cache;
+    this.ingestionExecutor = Executors.newFixedThreadPool(ingestionThreads,
+        new ThreadFactoryBuilder().setNameFormat("index-ingest-%d").setDaemon(true).build());
+    this.classificationExecutor = new ThreadPoolExecutor(classificationThreads,
+        classificationThreads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(classificationQueueSize),
+        new ThreadFactoryBuilder().setNameFormat("index-classify-%d").setDaemon(true).build(),
+        new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  void onStop(@Observes ShutdownEvent ev) {
+    ingestionExecutor.shutdownNow();
+    classificationExecutor.shutdownNow();
+  }
+
+  @Override
+  public void onGuildMessageReceived(@NotNull final GuildMessageReceivedEvent event) {
+    ingest(event.getChannel(), () -> messageIndex.put(event.getChannel(), event.getMessage())
+        .thenAccept(change -> apply(event.getChannel(), change)));
+  }
+
+  @Override
+  public void onGuildMessageUpdate(@NotNull final GuildMessageUpdateEvent event) {
+    ingest(event.getChannel(), () -> messageIndex.put(event.getChannel(), event.getMessage())
+        .thenAccept(change -> apply(event.getChannel(), change)));
+  }
+
+  @Override
+  public void onGuildMessageDelete(@NotNull final GuildMessageDeleteEvent event) {
+    TextChannel channel = event.getChannel();
+    ingest(channel, () -> messageIndex.remove(channel, event.getMessageIdLong())
+        .thenAccept(removed -> removed.ifPresent(message -> withdraw(channel, message))));
+  }
+
+  /**
+   * Catches up indexes after a reconnect, events missed meanwhile aren't replayed.
+   * Resumed sessions replay missed events, so they need no catch up.
+   */
+  @Override
+  public void onReconnected(@NotNull final ReconnectedEvent event) {
+    messageIndex.invalidate();
+  }
+
+  /**
+   * Ingests gateway event of a channel on the ingestion executor, after all previous events
+   * of the channel, unless the channel has no index.
+   *
+   * @param channel channel of the event
+   * @param ingestion ingestion of the event, completed once the event is applied
+   */
+  private void ingest(@NotNull TextChannel channel,
+                      @NotNull Supplier<CompletableFuture<?>> ingestion) {
+    this.ingestion.compute(channel.getIdLong(), (channelId, previous) ->
+        (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+            .thenRunAsync(() -> {
+              if (messageIndex.isIndexed(channel)) {
+                ingestion.get().whenComplete((result, throwable) -> logFailure(throwable));
+              }
+            }, ingestionExecutor)
+            .exceptionally(throwable -> {
+              logFailure(throwable);
+              return null;
+            }));
+  }
+
+  private static void logFailure(Throwable throwable) {
+    if (throwable != null) {
+      log.error("Exception indexing message!", throwable);
+    }
+  }
+
+  /**
+   * Classifies new entry of a received or edited message, or withdraws entry removed by an edit.
+   */
+  private void apply(@NotNull TextChannel channel, @NotNull MessageIndex.Change change) {
+    change.getAdded().ifPresent(message -> classify(channel, message));
+    change.getRemoved().ifPresent(message -> withdraw(channel, message));
+  }
+
+  /**
+   * Withdraws removed message from rarity counters of its author and drops its low confidence
+   * mark in background, so it isn't reprocessed.
+   *
+   * @param channel channel of the message
+   * @param message removed indexed message
+   */
+  private void withdraw(@NotNull TextChannel channel, @NotNull IndexedMessage message) {
+    String guildId = channel.getGuild().getId();
+    String channelId = channel.getId();
+    ingestionExecutor.execute(() -> {
+      cache.removeFromAggregate(guildId, channelId, message);
+      cache.removeLowConfidence(message.getAttachmentId());
+    });
+  }
+
+  /**
+   * Classifies rarity of the message in background, unless it's already known,
+   * and updates rarity counters of its author.
+   *
+   * @param channel channel of the message
+   * @param message indexed message to classify
+   */
+  private void classify(@NotNull TextChannel channel, @NotNull IndexedMessage message) {
+    String guildId = channel.getGuild().getId();
+    String channelId = channel.getId();
+    classificationExecutor.execute(() -> {
+      if (message.getKnownRarity().isEmpty() && !message.isIgnored()) {
+        if (!properties.isBotEnabled()) {
+          return;
+        }
+        try {
+          classifier.loadOrComputeRarity(message);
+        } catch (IOException e) {
+          log.error("Exception getting image!", e);
+          return;
+        }
+      }
+      cache.updateAggregates(guildId, channelId, List.of(message));
+    });
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Streaming decoder of patches of non-interlaced 8-bit truecolour PNG images.
+ * <p>Unlike the ImageIO reader, which inflates all image data even for a small source region,
+ * rows are inflated and unfiltered one by one and decoding stops at the last row of the patch,
+ * so the rest of the stream is never read.</p>
+ */
+final class PngPatchDecoder {
+  private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+  /**
+   * Length of signature and IHDR chunk, the part of stream needed to decide support.
+   */
+  static final int HEADER_LENGTH = 33;
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_RGBA = 6;
+  /**
+   * Largest accepted width and height, dimensions come from untrusted headers and size buffers.
+   */
+  static final int MAX_DIMENSION = 16384;
+
+  private PngPatchDecoder() {
+  }
+
+  /**
+   * Decodes a patch if the stream contains a supported PNG image. Only {@link #HEADER_LENGTH}
+   * bytes are read if it doesn't, so callers can mark and reset the stream.
+   *
+   * @param in stream containing the image
+   * @param locator locates the centre of the patch from width and height of the image
+   * @param radius number of pixels sampled on each side of the centre
+   * @return {@link Optional} of colours in the default RGB colour model, row by row,
+   *     or empty if the image is not a supported PNG.
+   * @throws IOException if the image is malformed, larger than {@link #MAX_DIMENSION}
+   *     or an I/O exception occurs.
+   */
+  static Optional<int[]> samplePatch(@NotNull InputStream in,
+                                     @NotNull ImageSampler.Locator locator,
+                                     int radius) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    byte[] header = new byte[HEADER_LENGTH];
+    try {
+      data.readFully(header);
+    } catch (EOFException e) {
+      return Optional.empty();
+    }
+    for (int i = 0; i < SIGNATURE.length; i++) {
+      if (header[i] != SIGNATURE[i]) {
+        return Optional.empty();
+      }
+    }
+    if (readInt(header, 8) != 13
+        || !new String(header, 12, 4, StandardCharsets.US_ASCII).equals("IHDR")) {
+      return Optional.empty();
+    }
+    int width = readInt(header, 16);
+    int height = readInt(header, 20);
+    int bitDepth = header[24];
+    int colorType = header[25];
+    int interlace = header[28];
+    if (bitDepth != 8 || interlace != 0
+        || (colorType != COLOR_TYPE_RGB && colorType != COLOR_TYPE_RGBA)) {
+      return Optional.empty();
+    }
+    if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+      throw new IOException("Unsupported PNG dimensions " + width + "x" + height + "!");
+    }
+    Point center = locator.locate(width, height);
+    Rectangle patch = new Rectangle(center.x - radius, center.y - radius,
+        radius * 2 + 1, radius * 2 + 1)
+        .intersection(new Rectangle(0, 0, width, height));
+    if (patch.isEmpty()) {
+      throw new IOException("Sampled position is outside of the image!");
+    }
+    int bytesPerPixel = colorType == COLOR_TYPE_RGBA ? 4 : 3;
+    int[] pixels = new int[patch.width * patch.height];
+    byte[] previous = new byte[width * bytesPerPixel];
+    byte[] current = new byte[width * bytesPerPixel];
+    // the stream of the caller isn't closed, so the inflater is ended explicitly
+    Inflater inflater = new Inflater();
+    try {
+      DataInputStream rows =
+          new DataInputStream(new InflaterInputStream(new ImageDataStream(data), inflater));
+      for (int y = 0; y < patch.y + patch.height; y++) {
+        int filter = rows.readUnsignedByte();
+        rows.readFully(current);
+        unfilter(filter, current, previous, bytesPerPixel);
+        if (y >= patch.y) {
+          int offset = (y - patch.y) * patch.width;
+          for (int x = 0; x < patch.width; x++) {
+            int i = (patch.x + x) * bytesPerPixel;
+            int alpha = bytesPerPixel == 4 ? current[i + 3] & 0xFF : 0xFF;
+            pixels[offset + x] = alpha << 24 | (current[i] & 0xFF) << 16
+                | (current[i + 1] & 0xFF) << 8 | current[i + 2] & 0xFF;
+          }
+        }
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+      }
+    } finally {
+      inflater.end();
+    }
+    return Optional.of(pixels);
+  }
+
+  private static void unfilter(int filter, byte[] row, byte[] previous, int bytesPerPixel)
+      throws IOException {
+    switch (filter) {
+      case 0:
+        break;
+      case 1:
+        for (int i = bytesPerPixel; i < row.length; i++) {
+          row[i] += row[i - bytesPerPixel];
+        }
+        break;
+      case 2:
+        for (int i = 0; i < row.length; i++) {
+          row[i] += previous[i];
+        }
+        break;
+      case 3:
+        for (int i = 0; i < row.length; i++) {
+          int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+          row[i] += (byte) ((left + (previous[i] & 0xFF)) >>> 1);
+        }
+        break;
+      case 4:
+        for (int i = 0; i < row.length; i++) {
+          int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+          int up = previous[i] & 0xFF;
+          int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+          row[i] += (byte) paeth(left, up, upLeft);
+        }
+        break;
+      default:
+        throw new IOException("Unknown PNG filter type " + filter + "!");
+    }
+  }
+
+  private static int paeth(int left, int up, int upLeft) {
+    int estimate = left + up - upLeft;
+    int distanceLeft = Math.abs(estimate - left);
+    int distanceUp = Math.abs(estimate - up);
+    int distanceUpLeft = Math.abs(estimate - upLeft);
+    if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+      return left;
+    }
+    return distanceUp <= distanceUpLeft ? up : upLeft;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+        | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+  }
+
+  /**
+   * Concatenated data of IDAT chunks, other chunks and CRCs are skipped.
+   */
+  private static class ImageDataStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining;
+    private boolean ended;
+
+    ImageDataStream(DataInputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte @NotNull [] buffer, int offset, int length) throws IOException {
+      while (remaining == 0) {
+        if (ended || !nextImageData()) {
+          return -1;
+        }
+      }
+      int read = in.read(buffer, offset, Math.min(length, remaining));
+      if (read < 0) {
+        throw new EOFException("Truncated PNG image data!");
+      }
+      remaining -= read;
+      if (remaining == 0) {
+        // CRC
+        in.readInt();
+      }
+      return read;
+    }
+
+    private boolean nextImageData() throws IOException {
+      while (true) {
+        int length = in.readInt();
+        byte[] type = new byte[4];
+        in.readFully(type);
+        String chunkType = new String(type, StandardCharsets.US_ASCII);
+        if (chunkType.equals("IDAT")) {
+          remaining = length;
+          if (length == 0) {
+            in.readInt();
+            continue;
+          }
+          return true;
+        }
+        if (chunkType.equals("IEND")) {
+          ended = true;
+          return false;
+        }
+        skipChunk(length + 4L);
+      }
+    }
+
+    private void skipChunk(long count) throws IOException {
+      while (count > 0) {
+        long skipped = in.skip(count);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException("Truncated PNG chunk!");
+          }
+          skipped = 1;
+        }
+        count -= skipped;
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lazily downloads a resource in chunks of growing size by HTTP Range requests,
+ * so only the part which is actually read is downloaded.
+ * <p>When the server ignores the range and responds with the whole body, the body is streamed
+ * instead and closing the stream aborts the rest of the download.</p>
+ */
+class RangeInputStream extends InputStream {
+  private static final int MAX_CHUNK_SIZE = 1 << 20;
+  private final HttpClient httpClient;
+  private final URI uri;
+  private final Duration timeout;
+  private final LongAdder downloadedBytes;
+  private int chunkSize;
+  private InputStream body;
+  private long position;
+  private long length = -1;
+  private boolean wholeBody;
+
+  RangeInputStream(@NotNull HttpClient httpClient,
+                   @NotNull URI uri,
+                   @NotNull Duration timeout,
+                   int initialChunkSize,
+                   @NotNull LongAdder downloadedBytes) {
+    this.httpClient = httpClient;
+    this.uri = uri;
+    this.timeout = timeout;
+    this.chunkSize = initialChunkSize;
+    this.downloadedBytes = downloadedBytes;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte @NotNull [] buffer, int offset, int count) throws IOException {
+    if (count == 0) {
+      return 0;
+    }
+    while (true) {
+      if (body != null) {
+        int read = body.read(buffer, offset, count);
+        if (read > 0) {
+          position += read;
+          downloadedBytes.add(read);
+          return read;
+        }
+        body.close();
+        body = null;
+        if (wholeBody) {
+          return -1;
+        }
+      }
+      if (length >= 0 && position >= length) {
+        return -1;
+      }
+      requestNextChunk();
+    }
+  }
+
+  private void requestNextChunk() throws IOException {
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .header("Range", "bytes=" + position + "-" + (position + chunkSize - 1))
+        .GET()
+        .build();
+    HttpResponse<InputStream> response;
+    try {
+      response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download of " + uri + " interrupted!");
+    }
+    switch (response.statusCode()) {
+      case 206:
+        length = response.headers().firstValue("Content-Range")
+            .map(RangeInputStream::parseLength)
+            .orElse(-1L);
+        chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        body = response.body();
+        break;
+      case 200:
+        wholeBody = true;
+        body = response.body();
+        skipRead(body);
+        break;
+      case 416:
+        response.body().close();
+        length = position;
+        break;
+      default:
+        response.body().close();
+        throw new IOException("Unexpected status " + response.statusCode() + " of " + uri);
+    }
+  }
+
+  /**
+   * Skips already read part of a whole body returned instead of a range.
+   */
+  private void skipRead(InputStream in) throws IOException {
+    long remaining = position;
+    while (remaining > 0) {
+      long skipped = in.skip(remaining);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("Resource " + uri + " changed during download!");
+        }
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+
+  /**
+   * Parses total length from Content-Range in format bytes start-end/length.
+   */
+  private static long parseLength(String contentRange) {
+    int slash = contentRange.lastIndexOf('/');
+    try {
+      return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (body != null) {
+      body.close();
+      body = null;
+    }
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Resolves rarity of indexed messages from forced rarity, memory, cache or the image itself.
+ */
+@Singleton
+public class RarityClassifier {
+  private static final Logger log = Logger.getLogger(RarityClassifier.class);
+  private final SingleFlight<Long, RarityTypes> classifications = new SingleFlight<>();
+  final Cache cache;
+  final MessageIndex messageIndex;
+  final ImageDownloader downloader;
+  final Telemetry telemetry;
+  private final int kernelRadius;
+  private final double minConfidence;
+  private final boolean thumbnailsEnabled;
+  private final int thumbnailWidth;
+
+  /**
+   * Creates the classifier.
+   *
+   * @param kernelRadius pixels sampled on each side of the anchor, 0 samples the anchor only
+   * @param minConfidence classifications with lower confidence are marked for reprocessing
+   * @param thumbnailsEnabled whether images are classified from downscaled thumbnails
+   * @param thumbnailWidth width of the thumbnails
+   */
+  @Inject
+  RarityClassifier(
+      final Cache cache,
+      final MessageIndex messageIndex,
+      final ImageDownloader downloader,
+      final Telemetry telemetry,
+      @ConfigProperty(name = "alphapackbot.classifier.kernel-radius", defaultValue = "2")
+      final int kernelRadius,
+      @ConfigProperty(name = "alphapackbot.classifier.min-confidence", defaultValue = "0.6")
+      final double minConfidence,
+      @ConfigProperty(name = "alphapackbot.classifier.thumbnails.enabled", defaultValue = "false")
+      final boolean thumbnailsEnabled,
+      @ConfigProperty(name = "alphapackbot.classifier.thumbnails.width", defaultValue = "480")
+      final int thumbnailWidth) {
+    this.cache = cache;
+    this.messageIndex = messageIndex;
+    this.downloader = downloader;
+    this.telemetry = telemetry;
+    this.kernelRadius = kernelRadius;
+    this.minConfidence = minConfidence;
+    this.thumbnailsEnabled = thumbnailsEnabled;
+    this.thumbnailWidth = thumbnailWidth;
+  }
+
+  /**
+   * Attempts to load rarity from cache, if unsuccessful, computes the rarity from URL.
+   * Result is remembered by the message, so following calls don't touch cache nor network.
+   *
+   * @param message indexed message containing the URL of image.
+   * @return rarity extracted from image or loaded from cache.
+   * @throws IOException if an I/O exception occurs.
+   */
+  public RarityTypes loadOrComputeRarity(@NotNull IndexedMessage message) throws IOException {
+    Optional<RarityTypes> knownRarity = message.getKnownRarity();
+    if (knownRarity.isPresent()) {
+      return knownRarity.get();
+    }
+    Optional<RarityTypes> cachedValue = cache.getRarity(message.getAttachmentId());
+    if (cachedValue.isPresent()) {
+      message.setRarity(cachedValue.get());
+      return cachedValue.get();
+    }
+    return computeRarity(message);
+  }
+
+  /**
+   * Computes the rarity from URL without looking into cache, then remembers and caches it.
+   *
+   * @param message indexed message containing the URL of image.
+   * @return rarity extracted from image.
+   * @throws IOException if an I/O exception occurs.
+   */
+  public RarityTypes computeRarity(@NotNull IndexedMessage message) throws IOException {
+    try {
+      return classifyOnce(message, () -> {
+        try {
+          RarityTypes rarity = record(message, classifyFromUrl(getImageUrl(message)));
+          cache.saveRarity(message.getAttachmentId(), rarity);
+          return CompletableFuture.completedFuture(rarity);
+        } catch (IOException e) {
+          return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+      }).join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Classifies attachment of the message unless it is already being classified,
+   * in which case the in-flight classification is shared. Result is remembered by the message.
+   *
+   * @param message indexed message to classify
+   * @param classification supplier starting the classification
+   * @return {@link CompletableFuture} completed with rarity of the attachment.
+   */
+  public CompletableFuture<RarityTypes> classifyOnce(
+      @NotNull IndexedMessage message,
+      @NotNull Supplier<CompletableFuture<RarityTypes>> classification) {
+    return classifications.execute(message.getAttachmentId(), classification)
+        .thenApply(rarity -> {
+          rememberRarity(message, rarity);
+          return rarity;
+        });
+  }
+
+  /**
+   * Loads cached rarities of all messages without known rarity in a few round trips
+   * and remembers them in the messages.
+   *
+   * @param messages indexed messages
+   */
+  public void loadRarities(@NotNull Collection<IndexedMessage> messages) {
+    List<IndexedMessage> unknown = messages.stream()
+        .filter(message -> message.getKnownRarity().isEmpty())
+        .collect(Collectors.toList());
+    Map<Long, RarityTypes> cached = cache.getRarities(unknown.stream()
+        .map(IndexedMessage::getAttachmentId)
+        .collect(Collectors.toSet()));
+    for (IndexedMessage message : unknown) {
+      RarityTypes rarity = cached.get(message.getAttachmentId());
+      if (rarity != null) {
+        message.setRarity(rarity);
+      }
+    }
+  }
+
+  /**
+   * Remembers computed rarity in the message.
+   *
+   * @param message indexed message the rarity was computed for
+   * @param rarity computed rarity
+   */
+  public void rememberRarity(@NotNull IndexedMessage message, @NotNull RarityTypes rarity) {
+    if (rarity == RarityTypes.UNKNOWN) {
+      log.infof("Unknown rarity in %s!", message.getAttachmentUrl());
+    }
+    message.setRarity(rarity);
+  }
+
+  /**
+   * Saves remembered rarities of all messages to cache in a few round trips.
+   *
+   * @param messages indexed messages with computed rarity
+   */
+  public void saveRarities(@NotNull Collection<IndexedMessage> messages) {
+    Map<Long, RarityTypes> rarities = new HashMap<>(messages.size());
+    for (IndexedMessage message : messages) {
+      if (message.getRarity() != null) {
+        rarities.put(message.getAttachmentId(), message.getRarity());
+      }
+    }
+    cache.saveRarities(rarities);
+  }
+
+  /**
+   * Marks the message for reprocessing if the classification is not confident enough.
+   *
+   * @param message indexed message the classification belongs to
+   * @param classification classification of the attachment
+   * @return classified rarity
+   */
+  public RarityTypes record(@NotNull IndexedMessage message,
+                            @NotNull Classification classification) {
+    if (classification.getConfidence() < minConfidence) {
+      log.infof("Low confidence classification %s of %s.", classification,
+          message.getAttachmentUrl());
+      cache.saveLowConfidence(message);
+    }
+    return classification.getRarity();
+  }
+
+  /**
+   * Classifies again attachments of all messages with low confidence classification.
+   * Confident images are not downloaded again. Reclassified rarities are saved to cache,
+   * message index and counters of their authors, messages whose classification
+   * became confident are no longer marked. Marks of messages no longer indexed with the same
+   * attachment, e.g. deleted ones, are dropped without reprocessing.
+   *
+   * @return number of reclassified messages whose classification became confident
+   */
+  public long reprocessLowConfidence() {
+    long resolved = 0;
+    for (IndexedMessage marked : cache.getLowConfidence()) {
+      Optional<IndexedMessage> indexed = messageIndex
+          .find(marked.getGuildId(), marked.getChannelId(), marked.getMessageId())
+          .filter(entry -> entry.getAttachmentId() == marked.getAttachmentId());
+      if (indexed.isEmpty()) {
+        cache.removeLowConfidence(marked.getAttachmentId());
+        continue;
+      }
+      IndexedMessage message = indexed.get();
+      Classification classification;
+      try {
+        byte[] image = downloader.download(message.getAttachmentUrl());
+        classification = classify(new ByteArrayInputStream(image));
+        cache.saveClassification(Hashing.sha256().hashBytes(image), classification);
+      } catch (IOException e) {
+        log.error("Exception getting an image!", e);
+        continue;
+      }
+      RarityTypes rarity = classification.getRarity();
+      message.setRarity(rarity);
+      cache.saveRarity(message.getAttachmentId(), rarity);
+      cache.updateAggregates(Long.toString(message.getGuildId()),
+          Long.toString(message.getChannelId()), List.of(message));
+      if (classification.getConfidence() >= minConfidence) {
+        cache.removeLowConfidence(message.getAttachmentId());
+        resolved++;
+      }
+    }
+    return resolved;
+  }
+
+  /**
+   * Classifies colours of a patch of pixels by majority vote.
+   * Pixels which don't match any rarity vote for none.
+   *
+   * @param pixels colours of the pixels in the default RGB colour model
+   * @return rarity with most votes and share of its votes as confidence,
+   *     {@link RarityTypes#UNKNOWN} with zero confidence if no pixel matches a rarity.
+   */
+  public @NotNull Classification classify(int @NotNull [] pixels) {
+    int[] votes = new int[RarityTypes.values().length];
+    for (int pixel : pixels) {
+      votes[RarityTypes.fromRgb(pixel).ordinal()]++;
+    }
+    RarityTypes winner = RarityTypes.UNKNOWN;
+    int winnerVotes = 0;
+    for (RarityTypes rarity : RarityTypes.values()) {
+      if (rarity != RarityTypes.UNKNOWN && votes[rarity.ordinal()] > winnerVotes) {
+        winner = rarity;
+        winnerVotes = votes[rarity.ordinal()];
+      }
+    }
+    if (winner == RarityTypes.UNKNOWN) {
+      int center = pixels[pixels.length / 2];
+      log.infof("R: %d G: %d B: %d", (center >> 16) & 0xFF, (center >> 8) & 0xFF, center & 0xFF);
+      return new Classification(RarityTypes.UNKNOWN, 0);
+    }
+    return new Classification(winner, (double) winnerVotes / pixels.length);
+  }
+
+  /**
+   * Returns URL of the image to classify, a downscaled thumbnail if enabled and available.
+   *
+   * @param message indexed message of the image
+   * @return URL of the thumbnail or of the original attachment
+   */
+  public String getImageUrl(@NotNull IndexedMessage message) {
+    if (thumbnailsEnabled) {
+      return message.getThumbnailUrl(thumbnailWidth).orElse(message.getAttachmentUrl());
+    }
+    return message.getAttachmentUrl();
+  }
+
+  /**
+   * Classifies random sample of indexed images both from thumbnails and originals,
+   * so equivalence of thumbnail classification can be checked before enabling it.
+   * Mismatches are logged.
+   *
+   * @param sampleSize maximum number of compared images
+   * @return result of the comparison
+   */
+  public ThumbnailValidation validateThumbnails(int sampleSize) {
+    int compared = 0;
+    int matched = 0;
+    int failed = 0;
+    for (IndexedMessage message : messageIndex.sample(sampleSize)) {
+      Optional<String> thumbnailUrl = message.getThumbnailUrl(thumbnailWidth);
+      if (thumbnailUrl.isEmpty()) {
+        continue;
+      }
+      try {
+        Classification thumbnail = classifyFromUrl(thumbnailUrl.get());
+        Classification original = classifyFromUrl(message.getAttachmentUrl());
+        compared++;
+        if (thumbnail.getRarity() == original.getRarity()) {
+          matched++;
+        } else {
+          log.warnf("Thumbnail classified as %s, original as %s: %s", thumbnail, original,
+              message.getAttachmentUrl());
+        }
+      } catch (IOException e) {
+        failed++;
+        log.error("Exception getting an image!", e);
+      }
+    }
+    log.infof("Thumbnails matched %d of %d compared images, %d failed.",
+        matched, compared, failed);
+    return new ThumbnailValidation(compared, matched, failed);
+  }
+
+  /**
+   * Classifies patch around the rarity pixel of an image from an URL.
+   * Position of the pixel depends on aspect ratio of the image, see {@link AnchorProfile}.
+   *
+   * @param imageUrl URL from which to load image
+   * @return classification of the image
+   * @throws IOException if an I/O exception occurs.
+   */
+  public Classification classifyFromUrl(@NotNull String imageUrl) throws IOException {
+    if (downloader.isRangeRequestsEnabled()) {
+      return downloader.readPartially(imageUrl, this::classify);
+    }
+    return classify(downloader.download(imageUrl));
+  }
+
+  /**
+   * Classifies patch around the rarity pixel of an already downloaded image.
+   * Images with the same content, e.g. reposted screenshots, are decoded only once,
+   * their classification is cached by hash of the content.
+   *
+   * @param image encoded image
+   * @return classification of the image
+   * @throws IOException if the image can't be decoded.
+   */
+  public Classification classify(byte @NotNull [] image) throws IOException {
+    HashCode contentHash = Hashing.sha256().hashBytes(image);
+    Optional<Classification> known = cache.getClassification(contentHash);
+    if (known.isPresent()) {
+      telemetry.getContentHashHits().increment();
+      return known.get();
+    }
+    Classification classification = classify(new ByteArrayInputStream(image));
+    cache.saveClassification(contentHash, classification);
+    return classification;
+  }
+
+  /**
+   * Classifies patch around the rarity pixel of an image, reading only as much of the stream
+   * as the decoder needs.
+   *
+   * @param in stream containing the image
+   * @return classification of the image
+   * @throws IOException if the image can't be decoded or an I/O exception occurs.
+   */
+  public Classification classify(@NotNull InputStream in) throws IOException {
+    return classify(ImageSampler.samplePatch(in, AnchorProfile::locate, kernelRadius));
+  }
+}
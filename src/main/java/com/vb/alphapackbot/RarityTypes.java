@@ -30,21 +30,50 @@ import org.apache.commons.lang3.StringUtils;
  * Contains available rarity types and special unknown type.
  */
 public enum RarityTypes {
-  COMMON("Common"),
-  UNCOMMON("Uncommon"),
-  RARE("Rare"),
-  EPIC("Epic"),
-  LEGENDARY("Legendary"),
-  UNKNOWN("Unknown");
+  COMMON("Common", 0),
+  UNCOMMON("Uncommon", 1),
+  RARE("Rare", 2),
+  EPIC("Epic", 3),
+  LEGENDARY("Legendary", 4),
+  UNKNOWN("Unknown", 5);
 
   private static final Map<String, RarityTypes> stringValues = Stream.of(values())
       .collect(Collectors.toMap(RarityTypes::toString, x -> x));
+  private static final Map<Byte, RarityTypes> codeValues = Stream.of(values())
+      .collect(Collectors.toMap(RarityTypes::getCode, x -> x));
+  private static final RarityTypes[] ordinalValues = values();
+  /**
+   * Per channel lookup of rarities whose range contains the channel value,
+   * bit {@code n} of the mask is set when range of rarity with ordinal {@code n} matches.
+   */
+  private static final byte[][] channelMasks = new byte[3][256];
+
+  static {
+    for (RarityTypes rarity : ordinalValues) {
+      if (rarity == UNKNOWN) {
+        continue;
+      }
+      for (int channel = 0; channel < 3; channel++) {
+        Range<Integer> range = rarity.range.get(channel);
+        for (int value = range.lowerEndpoint(); value <= range.upperEndpoint(); value++) {
+          channelMasks[channel][value] |= (byte) (1 << rarity.ordinal());
+        }
+      }
+    }
+  }
+
   private final String rarity;
+  /**
+   * Stable code used in compact encodings, independent of declaration order.
+   */
+  @Getter
+  private final byte code;
   @Getter
   private final ImmutableList<Range<Integer>> range;
 
-  RarityTypes(String rarity) {
+  RarityTypes(String rarity, int code) {
     this.rarity = rarity;
+    this.code = (byte) code;
     switch (rarity) {
       case "Common":
         range = ImmutableList.of(
@@ -92,6 +121,27 @@ public enum RarityTypes {
     return Optional.ofNullable(stringValues.getOrDefault(toParse, null));
   }
 
+  /**
+   * Obtains rarity whose ranges contain all channels of the colour, without any allocation.
+   * When ranges of more rarities match, the one declared first wins.
+   *
+   * @param rgb colour in the default RGB colour model
+   * @return matching rarity or {@link RarityTypes#UNKNOWN} if none matches.
+   */
+  public static RarityTypes fromRgb(int rgb) {
+    int mask = channelMasks[0][(rgb >> 16) & 0xFF]
+        & channelMasks[1][(rgb >> 8) & 0xFF]
+        & channelMasks[2][rgb & 0xFF];
+    if (mask == 0) {
+      return UNKNOWN;
+    }
+    return ordinalValues[Integer.numberOfTrailingZeros(mask)];
+  }
+
+  public static Optional<RarityTypes> fromCode(byte code) {
+    return Optional.ofNullable(codeValues.get(code));
+  }
+
   @Override
   public String toString() {
     return rarity;
@@ -0,0 +1,407 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Cache backend storing everything in Redis on localhost.
+ */
+public class RedisCacheBackend implements CacheBackend {
+  private static final Logger log = Logger.getLogger(RedisCacheBackend.class);
+  private static final int BATCH_SIZE = 1000;
+  private static final String LOW_CONFIDENCE_KEY = "low-confidence";
+  /**
+   * Moves contribution of message ARGV[1] from its previous rarity code, stored in hash KEYS[1],
+   * to code ARGV[2] in counters hash KEYS[2]. Empty code withdraws the contribution.
+   */
+  private static final String CONTRIBUTE_SCRIPT =
+      "local old = redis.call('HGET', KEYS[1], ARGV[1])\n"
+      + "if old == false then old = '' end\n"
+      + "if old == ARGV[2] then return 0 end\n"
+      + "if old ~= '' then redis.call('HINCRBY', KEYS[2], old, -1) end\n"
+      + "if ARGV[2] == '' then\n"
+      + "  redis.call('HDEL', KEYS[1], ARGV[1])\n"
+      + "else\n"
+      + "  redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])\n"
+      + "  redis.call('HINCRBY', KEYS[2], ARGV[2], 1)\n"
+      + "end\n"
+      + "return 1";
+  private final JedisPool jedisPool;
+  private final CircuitBreaker breaker;
+  private final ScheduledExecutorService reconnectExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("redis-reconnect").setDaemon(true).build());
+
+  /**
+   * Creates the connection pool without connecting. The breaker starts open and is closed
+   * by the first successful probe, which runs right away in background, so startup doesn't
+   * wait for Redis. While open, Redis is probed every retry interval.
+   *
+   * @param failureThreshold consecutive connection failures which open the breaker
+   * @param retryIntervalMillis interval of probes while the breaker is open
+   * @param timeoutMillis connection, socket and pool wait timeout
+   */
+  public RedisCacheBackend(int failureThreshold, long retryIntervalMillis, int timeoutMillis) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setBlockWhenExhausted(true);
+    config.setMaxWaitMillis(timeoutMillis);
+    config.setMinIdle(1);
+    config.setMaxIdle(5);
+    config.setMaxTotal(5);
+    this.jedisPool = new JedisPool(config, Protocol.DEFAULT_HOST, Protocol.DEFAULT_PORT,
+        timeoutMillis);
+    this.breaker = new CircuitBreaker("redis", failureThreshold, CircuitBreaker.State.OPEN);
+    reconnectExecutor.scheduleWithFixedDelay(() -> breaker.probe(this::ping),
+        0, retryIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean ping() {
+    try (Jedis jedis = jedisPool.getResource()) {
+      return "PONG".equals(jedis.ping());
+    } catch (JedisConnectionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Runs a call with a pooled connection if the breaker allows it. Connection failures are
+   * recorded by the breaker. They, other Redis failures such as an exhausted pool,
+   * and calls not allowed result in the fallback value.
+   */
+  private <T> T execute(Function<Jedis, T> call, T fallback) {
+    if (!breaker.allowsCalls()) {
+      return fallback;
+    }
+    try (Jedis jedis = jedisPool.getResource()) {
+      T result = call.apply(jedis);
+      breaker.recordSuccess();
+      return result;
+    } catch (JedisConnectionException e) {
+      breaker.recordFailure(e);
+      return fallback;
+    } catch (JedisException e) {
+      log.warnf("Redis call failed: %s", e.getMessage());
+      return fallback;
+    }
+  }
+
+  /**
+   * Backend is available while the breaker is closed.
+   */
+  @Override
+  public boolean isAvailable() {
+    return breaker.getState() == CircuitBreaker.State.CLOSED;
+  }
+
+  @Override
+  public Optional<CircuitBreaker> getCircuitBreaker() {
+    return Optional.of(breaker);
+  }
+
+  @Override
+  public String getName() {
+    return "redis";
+  }
+
+  /**
+   * Loads rarities using one MGET per batch.
+   */
+  @Override
+  public Map<Long, RarityTypes> getRarities(@NotNull Collection<Long> attachmentIds) {
+    if (attachmentIds.isEmpty()) {
+      return new HashMap<>();
+    }
+    return execute(jedis -> {
+      Map<Long, RarityTypes> rarities = new HashMap<>();
+      for (List<Long> batch : Iterables.partition(attachmentIds, BATCH_SIZE)) {
+        byte[][] keys = new byte[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+          keys[i] = CacheCodec.encodeRarityKey(batch.get(i));
+        }
+        List<byte[]> values = jedis.mget(keys);
+        for (int i = 0; i < batch.size(); i++) {
+          Long attachmentId = batch.get(i);
+          CacheCodec.decodeRarity(values.get(i))
+              .ifPresent(rarity -> rarities.put(attachmentId, rarity));
+        }
+      }
+      return rarities;
+    }, new HashMap<>());
+  }
+
+  /**
+   * Saves rarities using one MSET per batch.
+   */
+  @Override
+  public void saveRarities(@NotNull Map<Long, RarityTypes> rarities) {
+    if (rarities.isEmpty()) {
+      return;
+    }
+    execute(jedis -> {
+      for (List<Map.Entry<Long, RarityTypes>> batch
+          : Iterables.partition(rarities.entrySet(), BATCH_SIZE)) {
+        byte[][] keysValues = new byte[batch.size() * 2][];
+        for (int i = 0; i < batch.size(); i++) {
+          keysValues[i * 2] = CacheCodec.encodeRarityKey(batch.get(i).getKey());
+          keysValues[i * 2 + 1] = CacheCodec.encodeRarity(batch.get(i).getValue());
+        }
+        jedis.mset(keysValues);
+      }
+      return null;
+    }, null);
+  }
+
+  @Override
+  public Optional<Classification> getClassification(@NotNull HashCode contentHash) {
+    return execute(jedis -> CacheCodec.decodeClassification(
+        jedis.get(CacheCodec.encodeContentKey(contentHash))), Optional.empty());
+  }
+
+  @Override
+  public void saveClassification(@NotNull HashCode contentHash,
+                                 @NotNull Classification classification) {
+    execute(jedis -> jedis.set(CacheCodec.encodeContentKey(contentHash),
+        CacheCodec.encodeClassification(classification)), null);
+  }
+
+  @Override
+  public Map<RarityTypes, Integer> getAggregate(@NotNull String guildId,
+                                                @NotNull String channelId,
+                                                @NotNull String authorId) {
+    Map<RarityTypes, Integer> aggregate = new EnumMap<>(RarityTypes.class);
+    Map<String, String> counters = execute(
+        jedis -> jedis.hgetAll(aggregateKey(guildId, channelId, authorId)), Map.of());
+    counters.forEach((code, count) -> RarityTypes.fromCode(Byte.parseByte(code))
+        .ifPresent(rarity -> aggregate.put(rarity, Integer.parseInt(count))));
+    return aggregate;
+  }
+
+  @Override
+  public void replaceAggregate(@NotNull String guildId,
+                               @NotNull String channelId,
+                               @NotNull String authorId,
+                               @NotNull Map<Long, RarityTypes> contributions) {
+    Map<String, String> codes = new HashMap<>();
+    Map<RarityTypes, Integer> counters = new EnumMap<>(RarityTypes.class);
+    contributions.forEach((messageId, rarity) -> {
+      codes.put(Long.toString(messageId), Byte.toString(rarity.getCode()));
+      counters.merge(rarity, 1, Integer::sum);
+    });
+    String sourceKey = aggregateSourceKey(guildId, channelId, authorId);
+    String aggregateKey = aggregateKey(guildId, channelId, authorId);
+    execute(jedis -> {
+      Transaction transaction = jedis.multi();
+      transaction.del(sourceKey, aggregateKey);
+      if (!codes.isEmpty()) {
+        transaction.hset(sourceKey, codes);
+      }
+      counters.forEach((rarity, count) ->
+          transaction.hset(aggregateKey, Byte.toString(rarity.getCode()), Integer.toString(count)));
+      return transaction.exec();
+    }, null);
+  }
+
+  /**
+   * Runs the contribute script for every message in a single pipeline.
+   */
+  @Override
+  public void contribute(@NotNull String guildId,
+                         @NotNull String channelId,
+                         @NotNull List<Contribution> contributions) {
+    if (contributions.isEmpty()) {
+      return;
+    }
+    execute(jedis -> {
+      Pipeline pipeline = jedis.pipelined();
+      for (Contribution contribution : contributions) {
+        String authorId = Long.toString(contribution.getAuthorId());
+        RarityTypes rarity = contribution.getRarity();
+        pipeline.eval(CONTRIBUTE_SCRIPT,
+            List.of(aggregateSourceKey(guildId, channelId, authorId),
+                aggregateKey(guildId, channelId, authorId)),
+            List.of(Long.toString(contribution.getMessageId()),
+                rarity == null ? "" : Byte.toString(rarity.getCode())));
+      }
+      pipeline.sync();
+      return null;
+    }, null);
+  }
+
+  private static String aggregateKey(String guildId, String channelId, String authorId) {
+    return "agg:" + guildId + ":" + channelId + ":" + authorId;
+  }
+
+  private static String aggregateSourceKey(String guildId, String channelId, String authorId) {
+    return "agg-src:" + guildId + ":" + channelId + ":" + authorId;
+  }
+
+  @Override
+  public Map<String, String> getIndex(@NotNull String channelId) {
+    return execute(jedis -> jedis.hgetAll("index:" + channelId), Map.of());
+  }
+
+  @Override
+  public Optional<String> getIndexHead(@NotNull String channelId) {
+    return execute(jedis -> Optional.ofNullable(jedis.get("index-head:" + channelId)),
+        Optional.empty());
+  }
+
+  @Override
+  public void saveIndex(@NotNull String channelId,
+                        @NotNull Map<String, String> entries,
+                        @NotNull String headId) {
+    execute(jedis -> {
+      Pipeline pipeline = jedis.pipelined();
+      if (!entries.isEmpty()) {
+        pipeline.hset("index:" + channelId, entries);
+      }
+      pipeline.set("index-head:" + channelId, headId);
+      pipeline.sync();
+      return null;
+    }, null);
+  }
+
+  @Override
+  public void removeIndexEntry(@NotNull String channelId, @NotNull String messageId) {
+    execute(jedis -> jedis.hdel("index:" + channelId, messageId), null);
+  }
+
+  @Override
+  public void saveLowConfidence(long attachmentId, @NotNull String location) {
+    execute(jedis -> jedis.hset(LOW_CONFIDENCE_KEY, Long.toString(attachmentId), location), null);
+  }
+
+  @Override
+  public Collection<String> getLowConfidence() {
+    return execute(jedis -> jedis.hgetAll(LOW_CONFIDENCE_KEY).values(), List.of());
+  }
+
+  @Override
+  public void removeLowConfidence(long attachmentId) {
+    execute(jedis -> jedis.hdel(LOW_CONFIDENCE_KEY, Long.toString(attachmentId)), null);
+  }
+
+  /**
+   * Rewrites rarities stored under attachment URL keys with rarity display string values
+   * to the compact format of {@link CacheCodec}. Runs online, entries not yet migrated
+   * are just cache misses. Keys whose URL isn't recognized are left untouched.
+   * Each SCAN batch is migrated by its own call, so batches migrated before a failure are kept
+   * and running the migration again continues with the rest.
+   *
+   * @return number of migrated entries.
+   * @throws IOException if Redis failed or the breaker is open before all batches were migrated.
+   */
+  @Override
+  public long migrateLegacyRarities() throws IOException {
+    ScanParams params = new ScanParams().match("https://*").count(BATCH_SIZE);
+    long migrated = 0;
+    long skipped = 0;
+    String cursor = ScanParams.SCAN_POINTER_START;
+    do {
+      String batchCursor = cursor;
+      MigrationBatch batch = execute(jedis -> migrateBatch(jedis, batchCursor, params), null);
+      if (batch == null) {
+        log.warnf("Migration of cached rarities failed, migrated %d, skipped %d.",
+            migrated, skipped);
+        throw new IOException("Redis is unavailable, migrated " + migrated
+            + " cached rarities before the failure!");
+      }
+      migrated += batch.migrated;
+      skipped += batch.skipped;
+      cursor = batch.cursor;
+    } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    log.infof("Migrated %d cached rarities, skipped %d.", migrated, skipped);
+    return migrated;
+  }
+
+  /**
+   * Migrates legacy rarities of a single SCAN batch.
+   */
+  private static MigrationBatch migrateBatch(Jedis jedis, String cursor, ScanParams params) {
+    ScanResult<String> scanResult = jedis.scan(cursor, params);
+    MigrationBatch batch = new MigrationBatch(scanResult.getCursor());
+    List<String> keys = scanResult.getResult();
+    if (keys.isEmpty()) {
+      return batch;
+    }
+    List<String> values = jedis.mget(keys.toArray(new String[0]));
+    Pipeline pipeline = jedis.pipelined();
+    for (int i = 0; i < keys.size(); i++) {
+      OptionalLong attachmentId = CacheCodec.parseAttachmentId(keys.get(i));
+      Optional<RarityTypes> rarity = RarityTypes.parse(values.get(i));
+      if (attachmentId.isEmpty() || rarity.isEmpty()) {
+        batch.skipped++;
+        continue;
+      }
+      pipeline.set(CacheCodec.encodeRarityKey(attachmentId.getAsLong()),
+          CacheCodec.encodeRarity(rarity.get()));
+      pipeline.del(keys.get(i));
+      batch.migrated++;
+    }
+    pipeline.sync();
+    return batch;
+  }
+
+  /**
+   * Stops reconnecting and closes the connection pool.
+   */
+  @Override
+  public void close() {
+    reconnectExecutor.shutdownNow();
+    jedisPool.close();
+  }
+
+  /**
+   * Next SCAN cursor and counts of entries of a migrated batch.
+   */
+  private static class MigrationBatch {
+    private final String cursor;
+    private long migrated;
+    private long skipped;
+
+    MigrationBatch(String cursor) {
+      this.cursor = cursor;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Coalesces concurrent executions of the same unit of work.
+ * While work for a key is in flight, further requests for the key share its result
+ * instead of performing the work again. Once completed, the key can be executed again.
+ *
+ * @param <K> key identifying the unit of work
+ * @param <V> result of the work
+ */
+public final class SingleFlight<K, V> {
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Starts the work unless work for the same key is already in flight.
+   * The work is started in the calling thread, so synchronous work completes before returning.
+   *
+   * @param key key identifying the work
+   * @param work supplier starting the work
+   * @return {@link CompletableFuture} completed with the result of the shared work.
+   */
+  public @NotNull CompletableFuture<V> execute(@NotNull K key,
+                                               @NotNull Supplier<CompletableFuture<V>> work) {
+    CompletableFuture<V> promise = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, promise);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      work.get().whenComplete((result, throwable) -> {
+        inFlight.remove(key, promise);
+        if (throwable != null) {
+          promise.completeExceptionally(throwable);
+        } else {
+          promise.complete(result);
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.remove(key, promise);
+      promise.completeExceptionally(e);
+    }
+    return promise;
+  }
+
+  /**
+   * Returns count of keys with work in flight.
+   *
+   * @return count of keys with work in flight
+   */
+  public int size() {
+    return inFlight.size();
+  }
+}
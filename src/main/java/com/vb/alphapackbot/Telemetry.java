@@ -18,6 +18,7 @@ package com.vb.alphapackbot;
 
 import com.google.common.base.Stopwatch;
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 import javax.inject.Singleton;
 import lombok.Getter;
@@ -28,6 +29,38 @@ public class Telemetry {
   private final Stopwatch stopwatch = Stopwatch.createStarted();
   @Getter
   private final LongAdder commandsReceived = new LongAdder();
+  @Getter
+  private final AtomicInteger commandsQueued = new AtomicInteger();
+  @Getter
+  private final AtomicInteger commandsActive = new AtomicInteger();
+  @Getter
+  private final LongAdder commandsRejected = new LongAdder();
+  @Getter
+  private final AtomicInteger historyPagesQueued = new AtomicInteger();
+  @Getter
+  private final LongAdder historyPagesFetched = new LongAdder();
+  @Getter
+  private final LongAdder historyRateLimits = new LongAdder();
+  @Getter
+  private final LongAdder historyWaitMillis = new LongAdder();
+  @Getter
+  private final AtomicInteger historyConcurrency = new AtomicInteger();
+  @Getter
+  private final LatencyHistogram downloadLatency = new LatencyHistogram();
+  @Getter
+  private final LongAdder downloadsFailed = new LongAdder();
+  @Getter
+  private final LongAdder downloadedBytes = new LongAdder();
+  @Getter
+  private final LongAdder contentHashHits = new LongAdder();
+  @Getter
+  private final LongAdder nearCacheHits = new LongAdder();
+  @Getter
+  private final LongAdder nearCacheMisses = new LongAdder();
+  @Getter
+  private final LongAdder nearCacheEvictions = new LongAdder();
+  @Getter
+  private final LongAdder contentNearCacheEvictions = new LongAdder();
 
 
   /**
@@ -52,9 +85,25 @@ public class Telemetry {
 
   @Override
   public String toString() {
-    StringBuilder builder = new StringBuilder(40);
+    StringBuilder builder = new StringBuilder(400);
     builder.append("Uptime: ").append(formatUptime()).append("\n");
-    builder.append("Commands received: ").append(commandsReceived);
+    builder.append("Commands received: ").append(commandsReceived).append("\n");
+    builder.append("Commands queued/active/rejected: ").append(commandsQueued)
+        .append("/").append(commandsActive)
+        .append("/").append(commandsRejected).append("\n");
+    builder.append("History pages queued/fetched/rate limited: ").append(historyPagesQueued)
+        .append("/").append(historyPagesFetched)
+        .append("/").append(historyRateLimits).append("\n");
+    builder.append("History wait total: ").append(historyWaitMillis).append(" ms, concurrency: ")
+        .append(historyConcurrency).append("\n");
+    builder.append("Downloads: ").append(downloadLatency)
+        .append(", failed ").append(downloadsFailed)
+        .append(", bytes ").append(downloadedBytes)
+        .append(", duplicates ").append(contentHashHits).append("\n");
+    builder.append("Near cache hits/misses/evictions: ").append(nearCacheHits)
+        .append("/").append(nearCacheMisses)
+        .append("/").append(nearCacheEvictions).append("\n");
+    builder.append("Content near cache evictions: ").append(contentNearCacheEvictions);
     return builder.toString();
   }
 }
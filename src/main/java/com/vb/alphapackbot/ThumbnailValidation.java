@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import lombok.Getter;
+
+/**
+ * Result of comparing classifications of thumbnails with classifications of original images.
+ */
+@Getter
+public class ThumbnailValidation {
+  private final int compared;
+  private final int matched;
+  private final int failed;
+
+  public ThumbnailValidation(int compared, int matched, int failed) {
+    this.compared = compared;
+    this.matched = matched;
+    this.failed = failed;
+  }
+}
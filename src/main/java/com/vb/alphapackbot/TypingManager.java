@@ -28,7 +28,7 @@ import net.dv8tion.jda.api.entities.TextChannel;
 public class TypingManager {
   private final ConcurrentHashMultiset<TextChannel> liveChannels = ConcurrentHashMultiset.create();
   private final ConcurrentHashMap<TextChannel, ScheduledFuture<?>> channelFutures = new ConcurrentHashMap<>(0);
-  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(5);
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
   public TypingManager() {
     executor.setRemoveOnCancelPolicy(true);
@@ -42,7 +42,7 @@ public class TypingManager {
   }
 
   private void sendTyping(TextChannel textChannel) {
-    Runnable run = () -> textChannel.sendTyping().complete();
+    Runnable run = () -> textChannel.sendTyping().queue();
     ScheduledFuture<?> typer = executor.scheduleAtFixedRate(run, 0, 5, TimeUnit.SECONDS);
     channelFutures.put(textChannel, typer);
   }
@@ -53,6 +53,19 @@ public class UserData {
     return authorId;
   }
 
+  /**
+   * Returns count of all rarities.
+   *
+   * @return sum of counts of all rarities
+   */
+  public int getTotal() {
+    int total = 0;
+    for (int count : rarityData.values()) {
+      total += count;
+    }
+    return total;
+  }
+
   /**
    * Increases count of specified rarity by 1.
    *
@@ -17,86 +17,165 @@
 package com.vb.alphapackbot.commands;
 
 import com.vb.alphapackbot.Cache;
+import com.vb.alphapackbot.ClassificationPipeline;
 import com.vb.alphapackbot.Commands;
+import com.vb.alphapackbot.IndexedMessage;
+import com.vb.alphapackbot.MessageIndex;
+import com.vb.alphapackbot.RarityClassifier;
 import com.vb.alphapackbot.RarityTypes;
+import com.vb.alphapackbot.SingleFlight;
 import com.vb.alphapackbot.TypingManager;
 import com.vb.alphapackbot.UserData;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 
 public class CountCommand extends AbstractCommand {
   private static final Logger log = Logger.getLogger(CountCommand.class);
+  private static final SingleFlight<String, List<UserData>> counts = new SingleFlight<>();
+  private final ClassificationPipeline pipeline;
+  private final Cache cache;
+  private final Set<User> users;
 
+  /**
+   * Creates command counting rarities of all specified users.
+   *
+   * @param users users whose rarities are counted, in order of the reply
+   */
   public CountCommand(final GuildMessageReceivedEvent event,
                       final Commands command,
+                      final Set<User> users,
+                      final RarityClassifier classifier,
+                      final ClassificationPipeline pipeline,
                       final Cache cache,
-                      final TypingManager typingManager) {
-    super(event, command, cache, typingManager);
+                      final TypingManager typingManager,
+                      final MessageIndex messageIndex) {
+    super(event, command, classifier, typingManager, messageIndex);
+    this.users = users;
+    this.pipeline = pipeline;
+    this.cache = cache;
   }
 
   @Override
-  public void run() {
-    String authorId = event.getAuthor().getId();
-    UserData userData = getRaritiesForUser(messages, authorId);
-    printRarityPerUser(userData, event.getChannel());
-    finish();
+  void execute() {
+    String qualifier = users.stream()
+        .map(User::getId)
+        .sorted()
+        .collect(Collectors.joining(","));
+    printRarities(coalesce(counts, qualifier, this::count), event.getChannel());
+  }
+
+  /**
+   * Counts rarities of all users in a single pass over the channel.
+   * Users whose aggregate is up to date are answered from cache, the rest are recounted
+   * together in a single submission to the pipeline.
+   */
+  private List<UserData> count() {
+    Map<Long, List<IndexedMessage>> messagesPerUser = new LinkedHashMap<>();
+    for (User user : users) {
+      messagesPerUser.put(user.getIdLong(), new ArrayList<>());
+    }
+    for (IndexedMessage message : messageIndex.getMessages(event.getChannel())) {
+      List<IndexedMessage> messages = messagesPerUser.get(message.getAuthorId());
+      if (messages != null && !message.isIgnored()) {
+        messages.add(message);
+      }
+    }
+    String guildId = event.getGuild().getId();
+    String channelId = event.getChannel().getId();
+    Map<Long, UserData> userData = new LinkedHashMap<>();
+    Map<Long, List<IndexedMessage>> stale = new HashMap<>();
+    messagesPerUser.forEach((userId, messages) -> {
+      String authorId = Long.toString(userId);
+      UserData data = new UserData(cache.getAggregate(guildId, channelId, authorId), authorId);
+      if (data.getTotal() != messages.size()) {
+        stale.put(userId, messages);
+      }
+      userData.put(userId, data);
+    });
+    if (!stale.isEmpty()) {
+      userData.putAll(getRarities(stale));
+      stale.forEach((userId, messages) ->
+          cache.replaceAggregate(guildId, channelId, Long.toString(userId), messages));
+    }
+    return new ArrayList<>(userData.values());
   }
 
   /**
-   * Obtains all rarity data for specific user.
-   * Check {@link CountCommand#computeRarity(BufferedImage)}
+   * Obtains all rarity data for specified users. Images of all users are classified in parallel,
+   * check {@link ClassificationPipeline#submitAll(List)}
    *
-   * @param messages Messages from which rarities will be extracted
-   * @param authorId ID of request message author
-   * @return returns {@link UserData} containing count of all rarities from user.
+   * @param messagesPerUser Messages from which rarities will be extracted per user ID
+   * @return returns {@link UserData} containing count of all rarities per user ID.
    */
-  public UserData getRaritiesForUser(@NotNull List<Message> messages,
-                                     @NotNull String authorId) {
+  public Map<Long, UserData> getRarities(@NotNull Map<Long, List<IndexedMessage>> messagesPerUser) {
     System.out.println("Getting rarity per user...");
-    UserData userData = new UserData(authorId);
-    for (Message message : messages) {
+    List<IndexedMessage> messages = new ArrayList<>();
+    Map<Long, UserData> userData = new HashMap<>();
+    messagesPerUser.forEach((userId, userMessages) -> {
+      messages.addAll(userMessages);
+      userData.put(userId, new UserData(Long.toString(userId)));
+    });
+    List<CompletableFuture<RarityTypes>> rarities = pipeline.submitAll(messages);
+    for (int i = 0; i < messages.size(); i++) {
       try {
-        RarityTypes rarity = loadOrComputeRarity(message);
-        userData.increment(rarity);
-      } catch (IOException e) {
-        log.error("Exception getting image!", e);
+        userData.get(messages.get(i).getAuthorId()).increment(rarities.get(i).join());
+      } catch (CompletionException e) {
+        log.error("Exception getting image!", e.getCause());
       }
     }
     return userData;
   }
 
   /**
-   * Prints user data to console and sends message to channel if enabled.
+   * Prints user data to console and sends it to channel if enabled.
+   * Data of all users is sent in as few messages as the length limit allows.
    *
    * @param userData Data to be printed
    * @param channel  Channel to print data to
    */
-  public void printRarityPerUser(@NotNull UserData userData, @NotNull TextChannel channel) {
+  public void printRarities(@NotNull List<UserData> userData, @NotNull TextChannel channel) {
     if (!properties.isPrintingEnabled()) {
       return;
     }
-    int total = userData.getRarityData().get(RarityTypes.COMMON)
-        + userData.getRarityData().get(RarityTypes.UNCOMMON)
-        + userData.getRarityData().get(RarityTypes.RARE)
-        + userData.getRarityData().get(RarityTypes.EPIC)
-        + userData.getRarityData().get(RarityTypes.LEGENDARY)
-        + userData.getRarityData().get(RarityTypes.UNKNOWN);
+    StringBuilder message = new StringBuilder();
+    for (UserData data : userData) {
+      String section = formatRarities(data);
+      if (message.length() > 0
+          && message.length() + section.length() + 2 > Message.MAX_CONTENT_LENGTH) {
+        channel.sendMessage(message.toString()).queue();
+        message.setLength(0);
+      }
+      if (message.length() > 0) {
+        message.append("\n\n");
+      }
+      message.append(section);
+    }
+    if (message.length() > 0) {
+      channel.sendMessage(message.toString()).queue();
+    }
+  }
 
-    String message = "<@" + userData.getAuthorId() + ">\n"
-        + "Total: " + total + " \n"
+  private static String formatRarities(@NotNull UserData userData) {
+    return "<@" + userData.getAuthorId() + ">\n"
+        + "Total: " + userData.getTotal() + " \n"
         + RarityTypes.COMMON + ": " + userData.getRarityData().get(RarityTypes.COMMON) + "\n"
         + RarityTypes.UNCOMMON + ": " + userData.getRarityData().get(RarityTypes.UNCOMMON) + "\n"
         + RarityTypes.RARE + ": " + userData.getRarityData().get(RarityTypes.RARE) + "\n"
         + RarityTypes.EPIC + ": " + userData.getRarityData().get(RarityTypes.EPIC) + "\n"
         + RarityTypes.LEGENDARY + ": " + userData.getRarityData().get(RarityTypes.LEGENDARY) + "\n"
         + RarityTypes.UNKNOWN + ": " + userData.getRarityData().get(RarityTypes.UNKNOWN);
-
-    channel.sendMessage(message).complete();
   }
 }
@@ -17,9 +17,12 @@
 package com.vb.alphapackbot.commands;
 
 import com.google.common.collect.Lists;
-import com.vb.alphapackbot.Cache;
 import com.vb.alphapackbot.Commands;
+import com.vb.alphapackbot.IndexedMessage;
+import com.vb.alphapackbot.MessageIndex;
+import com.vb.alphapackbot.RarityClassifier;
 import com.vb.alphapackbot.RarityTypes;
+import com.vb.alphapackbot.SingleFlight;
 import com.vb.alphapackbot.TypingManager;
 import java.io.IOException;
 import java.time.OffsetDateTime;
@@ -32,27 +35,29 @@ import org.jetbrains.annotations.NotNull;
 
 public class OccurrenceCommand extends AbstractCommand {
   private static final Logger log = Logger.getLogger(OccurrenceCommand.class);
+  private static final SingleFlight<String, Optional<IndexedMessage>> occurrences =
+      new SingleFlight<>();
   private final RarityTypes requestedRarity;
 
   public OccurrenceCommand(final GuildMessageReceivedEvent event,
                            final Commands command,
                            final RarityTypes requestedRarity,
-                           final Cache cache,
-                           final TypingManager typingManger) {
-    super(event, command, cache, typingManger);
+                           final RarityClassifier classifier,
+                           final TypingManager typingManger,
+                           final MessageIndex messageIndex) {
+    super(event, command, classifier, typingManger, messageIndex);
     this.requestedRarity = requestedRarity;
   }
 
   @Override
-  public void run() {
-    Optional<Message> result;
-    if (command == Commands.FIRST) {
-      result = getOccurrence(Lists.reverse(messages));
-    } else {
-      result = getOccurrence(messages);
-    }
-    result.ifPresent(this::printOccurrence);
-    finish();
+  void execute() {
+    coalesce(occurrences, requestedRarity.toString(), () -> {
+      List<IndexedMessage> messages = loadMessages();
+      if (command == Commands.FIRST) {
+        return getOccurrence(Lists.reverse(messages));
+      }
+      return getOccurrence(messages);
+    }).ifPresent(this::printOccurrence);
   }
 
   /**
@@ -61,10 +66,14 @@ public class OccurrenceCommand extends AbstractCommand {
    * @param messages list of messages in which the rarity is searched
    * @return {@link Optional} of message (empty if specified rarity is not present)
    */
-  private Optional<Message> getOccurrence(List<Message> messages) {
-    for (Message message : messages) {
+  private Optional<IndexedMessage> getOccurrence(List<IndexedMessage> messages) {
+    classifier.loadRarities(messages);
+    for (IndexedMessage message : messages) {
       try {
-        RarityTypes rarity = loadOrComputeRarity(message);
+        Optional<RarityTypes> knownRarity = message.getKnownRarity();
+        RarityTypes rarity = knownRarity.isPresent()
+            ? knownRarity.get()
+            : classifier.computeRarity(message);
         if (rarity == requestedRarity) {
           return Optional.of(message);
         }
@@ -80,19 +89,20 @@ public class OccurrenceCommand extends AbstractCommand {
    *
    * @param message message of the occurrence
    */
-  private void printOccurrence(@NotNull Message message) {
+  private void printOccurrence(@NotNull IndexedMessage message) {
     OffsetDateTime timeCreated = message.getTimeCreated();
     String reply = "You opened your " + command.toString() + " "
         + requestedRarity.toString() + " on "
         + timeCreated.getDayOfMonth() + "." + timeCreated.getMonth().getValue()
         + "." + timeCreated.getYear()
         + " at " + timeCreated.getHour() + ":" + timeCreated.getMinute() + "\n"
-        + "link: " + message.getJumpUrl() + ".";
+        + "link: " + String.format(Message.JUMP_URL, event.getGuild().getId(),
+        event.getChannel().getId(), message.getMessageId()) + ".";
 
     System.out.println(reply);
 
     if (properties.isPrintingEnabled()) {
-      event.getMessage().reply(reply).complete();
+      event.getMessage().reply(reply).queue();
     }
   }
 }
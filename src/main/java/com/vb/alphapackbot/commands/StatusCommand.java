@@ -39,7 +39,7 @@ public class StatusCommand {
    */
   public void sendStatus() {
     if (properties.isPrintingEnabled()) {
-      event.getChannel().sendMessage(telemetry.toString()).complete();
+      event.getChannel().sendMessage(telemetry.toString()).queue();
     }
   }
 }
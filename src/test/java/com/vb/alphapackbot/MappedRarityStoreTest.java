@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Stores rarities across resizes and reopening of the file.
+ */
+class MappedRarityStoreTest {
+  private static final int ENTRIES = 1000;
+  /**
+   * Offset of the size in the header, covered by its checksum.
+   */
+  private static final int SIZE_OFFSET = 16;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void keepsEntriesWhenResized() throws IOException {
+    try (MappedRarityStore store = new MappedRarityStore(directory.resolve("rarities"), 16)) {
+      assertEquals(16, store.capacity());
+      fill(store);
+
+      assertTrue(store.capacity() >= ENTRIES);
+      assertEquals(ENTRIES, store.size());
+      assertEntries(store);
+      assertEquals(Optional.empty(), store.get(ENTRIES + 1));
+    }
+    assertFalse(Files.exists(directory.resolve("rarities.resize")));
+  }
+
+  @Test
+  void overwritesEntry() throws IOException {
+    try (MappedRarityStore store = new MappedRarityStore(directory.resolve("rarities"), 16)) {
+      assertTrue(store.put(42, RarityTypes.COMMON));
+      assertTrue(store.put(42, RarityTypes.EPIC));
+
+      assertEquals(1, store.size());
+      assertEquals(Optional.of(RarityTypes.EPIC), store.get(42));
+    }
+  }
+
+  @Test
+  void keepsEntriesWhenReopened() throws IOException {
+    Path path = directory.resolve("rarities");
+    int capacity;
+    try (MappedRarityStore store = new MappedRarityStore(path, 16)) {
+      fill(store);
+      capacity = store.capacity();
+    }
+
+    try (MappedRarityStore store = new MappedRarityStore(path, 16)) {
+      assertEquals(capacity, store.capacity());
+      assertEquals(ENTRIES, store.size());
+      assertEntries(store);
+    }
+  }
+
+  @Test
+  void recountsEntriesWhenChecksumDoesNotMatch() throws IOException {
+    Path path = directory.resolve("rarities");
+    try (MappedRarityStore store = new MappedRarityStore(path, 16)) {
+      fill(store);
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, 12345), SIZE_OFFSET);
+    }
+
+    try (MappedRarityStore store = new MappedRarityStore(path, 16)) {
+      assertEquals(ENTRIES, store.size());
+      assertEntries(store);
+    }
+  }
+
+  @Test
+  void rejectsOtherFile() throws IOException {
+    Path path = directory.resolve("other");
+    // no whole number of slots fits the rest of the file after the header
+    Files.write(path, new byte[100 + 1]);
+
+    assertThrows(IOException.class, () -> new MappedRarityStore(path, 16));
+  }
+
+  @Test
+  void rejectsAttachmentZero() throws IOException {
+    try (MappedRarityStore store = new MappedRarityStore(directory.resolve("rarities"), 16)) {
+      assertThrows(IllegalArgumentException.class, () -> store.put(0, RarityTypes.RARE));
+    }
+  }
+
+  private static void fill(MappedRarityStore store) {
+    for (long attachmentId = 1; attachmentId <= ENTRIES; attachmentId++) {
+      assertTrue(store.put(attachmentId, rarityOf(attachmentId)));
+    }
+  }
+
+  private static void assertEntries(MappedRarityStore store) {
+    for (long attachmentId = 1; attachmentId <= ENTRIES; attachmentId++) {
+      assertEquals(Optional.of(rarityOf(attachmentId)), store.get(attachmentId));
+    }
+  }
+
+  private static RarityTypes rarityOf(long attachmentId) {
+    return RarityTypes.values()[(int) (attachmentId % RarityTypes.values().length)];
+  }
+}
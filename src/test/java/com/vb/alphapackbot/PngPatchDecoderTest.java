@@ -0,0 +1,234 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Decodes PNG images written with each filter type and compares patches with ImageIO.
+ */
+class PngPatchDecoderTest {
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_RGBA = 6;
+  private static final int WIDTH = 7;
+  private static final int HEIGHT = 6;
+
+  @ParameterizedTest
+  @CsvSource({
+      "0, 2", "1, 2", "2, 2", "3, 2", "4, 2",
+      "0, 6", "1, 6", "2, 6", "3, 6", "4, 6"
+  })
+  void decodesPatchOfFilteredImage(int filter, int colorType) throws IOException {
+    int bytesPerPixel = colorType == COLOR_TYPE_RGBA ? 4 : 3;
+    byte[][] rows = randomRows(WIDTH * bytesPerPixel, HEIGHT, filter * 10L + colorType);
+    byte[] png = encode(WIDTH, HEIGHT, colorType, 0, filter, rows);
+
+    Optional<int[]> patch = PngPatchDecoder.samplePatch(new ByteArrayInputStream(png),
+        (width, height) -> new Point(width - 2, height - 2), 1);
+
+    assertTrue(patch.isPresent());
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+    int[] expected = new int[9];
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 3; x++) {
+        int i = (WIDTH - 3 + x) * bytesPerPixel;
+        byte[] row = rows[HEIGHT - 3 + y];
+        int alpha = bytesPerPixel == 4 ? row[i + 3] & 0xFF : 0xFF;
+        expected[y * 3 + x] = alpha << 24 | (row[i] & 0xFF) << 16
+            | (row[i + 1] & 0xFF) << 8 | row[i + 2] & 0xFF;
+        assertEquals(image.getRGB(WIDTH - 3 + x, HEIGHT - 3 + y), expected[y * 3 + x]);
+      }
+    }
+    assertArrayEquals(expected, patch.get());
+  }
+
+  @Test
+  void stopsReadingAtLastRowOfPatch() throws IOException {
+    byte[][] rows = randomRows(WIDTH * 3, HEIGHT, 1);
+    byte[] png = encode(WIDTH, HEIGHT, COLOR_TYPE_RGB, 0, 4, rows);
+    // the second image data chunk, holding the rows below the patch, is cut off
+    byte[] truncated = Arrays.copyOf(png, secondImageDataOffset(png));
+
+    Optional<int[]> patch = PngPatchDecoder.samplePatch(new ByteArrayInputStream(truncated),
+        (width, height) -> new Point(0, 0), 0);
+
+    assertTrue(patch.isPresent());
+    assertEquals(0xFF000000 | (rows[0][0] & 0xFF) << 16 | (rows[0][1] & 0xFF) << 8
+        | rows[0][2] & 0xFF, patch.get()[0]);
+  }
+
+  @Test
+  void skipsInterlacedImage() throws IOException {
+    byte[] png = encode(WIDTH, HEIGHT, COLOR_TYPE_RGB, 1, 0, randomRows(WIDTH * 3, HEIGHT, 2));
+    ByteArrayInputStream in = new ByteArrayInputStream(png);
+
+    assertTrue(PngPatchDecoder.samplePatch(in, (width, height) -> new Point(0, 0), 0).isEmpty());
+    assertEquals(png.length - PngPatchDecoder.HEADER_LENGTH, in.available());
+  }
+
+  @Test
+  void skipsOtherFormats() throws IOException {
+    byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F'};
+
+    assertTrue(PngPatchDecoder.samplePatch(new ByteArrayInputStream(jpeg),
+        (width, height) -> new Point(0, 0), 0).isEmpty());
+  }
+
+  @ParameterizedTest
+  @CsvSource({"0, 1", "1, -1", "16385, 1", "1, 16385"})
+  void rejectsUnsupportedDimensions(int width, int height) {
+    byte[] png = encode(width, height, COLOR_TYPE_RGB, 0, 0, new byte[0][]);
+
+    assertThrows(IOException.class, () -> PngPatchDecoder.samplePatch(
+        new ByteArrayInputStream(png), (w, h) -> new Point(0, 0), 0));
+  }
+
+  @Test
+  void rejectsUnknownFilter() {
+    byte[] png = encode(WIDTH, HEIGHT, COLOR_TYPE_RGB, 0, 5, randomRows(WIDTH * 3, HEIGHT, 3));
+
+    assertThrows(IOException.class, () -> PngPatchDecoder.samplePatch(
+        new ByteArrayInputStream(png), (width, height) -> new Point(0, 0), 0));
+  }
+
+  private static int secondImageDataOffset(byte[] png) {
+    String chunks = new String(png, StandardCharsets.ISO_8859_1);
+    // type of chunk is preceded by its length
+    return chunks.indexOf("IDAT", chunks.indexOf("IDAT") + 4) - 4;
+  }
+
+  private static byte[][] randomRows(int rowLength, int height, long seed) {
+    Random random = new Random(seed);
+    byte[][] rows = new byte[height][rowLength];
+    for (byte[] row : rows) {
+      random.nextBytes(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Writes 8-bit PNG image with all rows filtered by the same filter type. The filter type
+   * is written as is, so filter types unknown to readers can be written too.
+   */
+  private static byte[] encode(int width, int height, int colorType, int interlace, int filter,
+                               byte[][] rows) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(new byte[] {(byte) 137, 80, 78, 71, 13, 10, 26, 10});
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream headerData = new DataOutputStream(header);
+      headerData.writeInt(width);
+      headerData.writeInt(height);
+      headerData.write(new byte[] {8, (byte) colorType, 0, 0, (byte) interlace});
+      writeChunk(out, "IHDR", header.toByteArray());
+      writeChunk(out, "tEXt", "Comment\0ignored".getBytes(StandardCharsets.ISO_8859_1));
+
+      int bytesPerPixel = colorType == COLOR_TYPE_RGBA ? 4 : 3;
+      ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+      try (DeflaterOutputStream deflater = new DeflaterOutputStream(imageData)) {
+        byte[] previous = new byte[rows.length == 0 ? 0 : rows[0].length];
+        for (byte[] row : rows) {
+          deflater.write(filter);
+          deflater.write(filter(filter, row, previous, bytesPerPixel));
+          previous = row;
+        }
+      }
+      // image data split into two chunks, as decoders must concatenate them
+      byte[] data = imageData.toByteArray();
+      writeChunk(out, "IDAT", Arrays.copyOf(data, data.length / 2));
+      writeChunk(out, "IDAT", Arrays.copyOfRange(data, data.length / 2, data.length));
+      writeChunk(out, "IEND", new byte[0]);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static byte[] filter(int filter, byte[] row, byte[] previous, int bytesPerPixel) {
+    byte[] filtered = new byte[row.length];
+    for (int i = 0; i < row.length; i++) {
+      int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+      int up = previous[i] & 0xFF;
+      int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+      int predictor;
+      switch (filter) {
+        case 1:
+          predictor = left;
+          break;
+        case 2:
+          predictor = up;
+          break;
+        case 3:
+          predictor = (left + up) >>> 1;
+          break;
+        case 4:
+          predictor = paeth(left, up, upLeft);
+          break;
+        default:
+          predictor = 0;
+          break;
+      }
+      filtered[i] = (byte) (row[i] - predictor);
+    }
+    return filtered;
+  }
+
+  private static int paeth(int left, int up, int upLeft) {
+    int estimate = left + up - upLeft;
+    int distanceLeft = Math.abs(estimate - left);
+    int distanceUp = Math.abs(estimate - up);
+    int distanceUpLeft = Math.abs(estimate - upLeft);
+    if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+      return left;
+    }
+    return distanceUp <= distanceUpLeft ? up : upLeft;
+  }
+
+  private static void writeChunk(DataOutputStream out, String type, byte[] data)
+      throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data);
+    out.writeInt(data.length);
+    out.write(typeBytes);
+    out.write(data);
+    out.writeInt((int) crc.getValue());
+  }
+}
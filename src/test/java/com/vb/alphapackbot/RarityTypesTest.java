@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the lookup tables of {@link RarityTypes} against matching of colours by ranges.
+ */
+class RarityTypesTest {
+
+  @Test
+  void fromRgbMatchesRangesForAllColours() {
+    for (int rgb = 0; rgb < 1 << 24; rgb++) {
+      RarityTypes expected = fromRanges(rgb);
+      RarityTypes actual = RarityTypes.fromRgb(rgb);
+      if (actual != expected) {
+        assertEquals(expected, actual, String.format("Colour %06X", rgb));
+      }
+    }
+  }
+
+  @Test
+  void fromRgbIgnoresAlpha() {
+    assertEquals(RarityTypes.LEGENDARY, RarityTypes.fromRgb(0xFFF09610));
+    assertEquals(RarityTypes.LEGENDARY, RarityTypes.fromRgb(0x00F09610));
+  }
+
+  /**
+   * Matches colour by ranges of rarities in declaration order, as done before the lookup tables.
+   */
+  private static RarityTypes fromRanges(int rgb) {
+    int[] colors = {(rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF};
+    for (RarityTypes rarity : RarityTypes.values()) {
+      ImmutableList<Range<Integer>> range = rarity.getRange();
+      int hitCounter = 0;
+      for (int i = 0; i < 3; i++) {
+        if (range.get(i).contains(colors[i])) {
+          hitCounter += 1;
+        }
+      }
+      if (hitCounter == 3) {
+        return rarity;
+      }
+    }
+    return RarityTypes.UNKNOWN;
+  }
+}